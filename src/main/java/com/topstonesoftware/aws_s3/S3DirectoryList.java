@@ -42,6 +42,7 @@ public class S3DirectoryList {
     private final String bucket;
     private final String prefix;
     private String startAfter = null;
+    private int listRequests = 0;
 
     /**
      *
@@ -51,9 +52,38 @@ public class S3DirectoryList {
      *               empty string "".
      */
     public S3DirectoryList(AmazonS3 amazonS3, String bucket, String prefix) {
+        this(amazonS3, bucket, prefix, null);
+    }
+
+    /**
+     *
+     * @param amazonS3 The authenticated AmazonS3 client
+     * @param bucket The bucket to be listed.
+     * @param prefix The prefix within the bucket. If no prefix is needed the prefix should be the
+     *               empty string "".
+     * @param startAfter The listing starts after this key (a watermark from a previous listing). If
+     *                   startAfter is null, the listing starts at the beginning of the prefix.
+     */
+    public S3DirectoryList(AmazonS3 amazonS3, String bucket, String prefix, String startAfter) {
         this.amazonS3 = amazonS3;
         this.bucket = bucket;
         this.prefix = prefix;
+        this.startAfter = startAfter;
+    }
+
+    /**
+     * @return the last key that was returned by listDirectory() (or the initial startAfter key). This can be
+     * saved and passed to the constructor to resume the listing.
+     */
+    public String getStartAfter() {
+        return startAfter;
+    }
+
+    /**
+     * @return the number of S3 list requests that have been made
+     */
+    public int getListRequests() {
+        return listRequests;
     }
 
     /**
@@ -64,7 +94,18 @@ public class S3DirectoryList {
      *         zero will be returned.
      */
     public List<String> listDirectory(final int numToRead) {
-        List<String> keyList = new ArrayList<>();
+        return listObjects(numToRead).stream().map(S3ObjectSummary::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Return a list of the S3 object summaries (key, size, last modified time) for the bucket/prefix.
+     *
+     * @param numToRead the maximum number of S3 objects to return.
+     * @return a list of S3 object summaries. If all of the objects have been read, then a list of length
+     *         zero will be returned.
+     */
+    public List<S3ObjectSummary> listObjects(final int numToRead) {
+        List<S3ObjectSummary> objectList = new ArrayList<>();
         ListObjectsV2Result listObjects;
         int numRemaining = numToRead;
         do {
@@ -77,14 +118,15 @@ public class S3DirectoryList {
             }
 
             listObjects = amazonS3.listObjectsV2(request);
-            List<String> filePathList = listObjects.getObjectSummaries().stream().map(S3ObjectSummary::getKey).collect(Collectors.toList());
-            keyList.addAll(filePathList);
-            numRemaining = numRemaining - filePathList.size();
-            if (! filePathList.isEmpty()) {
-                startAfter = filePathList.get(filePathList.size() - 1);
+            listRequests++;
+            List<S3ObjectSummary> summaryList = listObjects.getObjectSummaries();
+            objectList.addAll(summaryList);
+            numRemaining = numRemaining - summaryList.size();
+            if (! summaryList.isEmpty()) {
+                startAfter = summaryList.get(summaryList.size() - 1).getKey();
             }
         } while (listObjects.isTruncated() && numRemaining > 0);
-        return keyList;
+        return objectList;
     }
 
 }
@@ -6,6 +6,7 @@ package com.topstonesoftware.s3logreader;
 
 import com.topstonesoftware.javaorc.ORCFileException;
 import com.topstonesoftware.javaorc.WriteORCFile;
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -17,6 +18,7 @@ import org.apache.orc.Writer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -28,33 +30,129 @@ import java.util.concurrent.LinkedBlockingQueue;
 /**
  * Read S3 web log file lines from a LinkedBlockingQueue, convert the lines to ORC row format and write
  * the lines out to an ORC file.
+ * <p>
+ *     The lines are read as LogChunks, which carry the S3 key of their log file. If a LineQuarantine is
+ *     supplied, lines that cannot be converted are passed to it, with their key and the reason. Otherwise
+ *     they are only counted in the PipelineMetrics.
+ * </p>
+ * <p>
+ *     If a DailyRollup is supplied, each row that is written is also added to the rollup. When the batch
+ *     is finished the rollup summary is written to a small ORC file under the path
+ *     [orcPathPrefix]_rollup/[domain]/[orc file name]
+ * </p>
+ * <p>
+ *     When a day is written as several ORC part files, each part has its own BatchToOrc object and DailyRollup.
+ *     The parts are built with deferRollup set, so that they do not write their rollups. After all of the parts
+ *     are finished, the rollups are merged into the rollup of one part and writeDeferredRollup() writes it to
+ *     the rollupFilename (e.g., 2021-06-17.orc, rather than the part file name).
+ * </p>
+ * <p>
+ *     The rollup is only written if the ORC data file was written, so that a rollup does not report rows that
+ *     are not in an ORC file.
+ * </p>
+ * <p>
+ *     If an OrcUploader is supplied, the ORC files are written to the uploader's local staging directory and
+ *     are then uploaded. The uploaded key is the key that the S3AFileSystem would have written, including the
+ *     /user/[user name] prefix for a relative orcPathPrefix (see OrcUploader.resolveKey()).
+ * </p>
+ * <pre>
+ *     BatchToOrc batchToOrc = BatchToOrc.builder()
+ *                                 .orcBucket(orcBucket)
+ *                                 .orcPathPrefix(orcPathPrefix)
+ *                                 .domainName(domain)
+ *                                 .orcFilename("2021-06-17.orc")
+ *                                 .logLineQueue(logLines)
+ *                                 .rollup(dailyRollup)
+ *                                 .uploader(uploader)
+ *                                 .enrichers(enrichers)
+ *                                 .quarantine(quarantine)
+ *                                 .build();
+ * </pre>
  *
  * @author Ian Kaplan, Topstone Software Consulting
  */
 @Slf4j
 public class BatchToOrc implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(BatchToOrc.class);
-    private static final TypeDescription schema = LogLineParser.buildOrcFileSchema();
+    private static final TypeDescription rollupSchema = DailyRollup.buildOrcFileSchema();
+    private static final String ROLLUP_SUFFIX = "_rollup";
+    // the parse and ORC write times are recorded for one line in TIMING_SAMPLE (a power of two)
+    static final int TIMING_SAMPLE = 64;
     private final Configuration writerConfig = new Configuration();
     private final String orcBucket;
     private final String orcPathPrefix;
     private final String domainName;
     private final String orcFilename;
-    private final LinkedBlockingQueue<String> logLineQueue;
+    private final LinkedBlockingQueue<LogChunk> logLineQueue;
+    private final DailyRollup rollup;
+    private final String rollupFilename;
+    private final boolean deferRollup;
+    private final OrcUploader uploader;
+    private final List<ColumnEnricher> enrichers;
+    private final IpColumnMode ipColumnMode;
+    private final LineQuarantine quarantine;
+    private final TypeDescription schema;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
     private int linesProcessed = 0;
+    private int linesQuarantined = 0;
+    private volatile boolean dataFileWritten = false;
+    private int timingCounter = 0;
 
-    public BatchToOrc(String orcBucket, String orcPathPrefix, String domainName, String orcFilename, LinkedBlockingQueue<String> logLineQueue) {
+    public BatchToOrc(String orcBucket, String orcPathPrefix, String domainName, String orcFilename, LinkedBlockingQueue<LogChunk> logLineQueue) {
+        this(orcBucket, orcPathPrefix, domainName, orcFilename, logLineQueue, null, null, false, null, null, null, null);
+    }
+
+    /**
+     * @param rollup a DailyRollup that is updated with each row that is written, or null if daily rollups
+     *               are not computed.
+     * @param rollupFilename the file name of the rollup ORC file, or null to use orcFilename.
+     * @param deferRollup if true, the rollup is not written by run(). It is written by writeDeferredRollup().
+     * @param uploader an OrcUploader for the staged ORC files, or null if the ORC files are written
+     *                 directly to S3.
+     * @param enrichers the ColumnEnrichers for the derived columns, or null if there are no derived columns.
+     * @param ipColumnMode the remote IP columns that are written, or null for the remote_ip string column.
+     * @param quarantine the LineQuarantine for the lines that cannot be converted, or null. The quarantine is
+     *                   not closed by this object.
+     */
+    @Builder
+    private BatchToOrc(String orcBucket, String orcPathPrefix, String domainName, String orcFilename,
+                      LinkedBlockingQueue<LogChunk> logLineQueue, DailyRollup rollup, String rollupFilename,
+                      boolean deferRollup, OrcUploader uploader,
+                      List<ColumnEnricher> enrichers, IpColumnMode ipColumnMode, LineQuarantine quarantine) {
         this.orcBucket = orcBucket;
         this.orcPathPrefix = orcPathPrefix;
         this.domainName = domainName;
         this.orcFilename = orcFilename;
         this.logLineQueue = logLineQueue;
+        this.rollup = rollup;
+        this.rollupFilename = rollupFilename != null ? rollupFilename : orcFilename;
+        this.deferRollup = deferRollup;
+        this.uploader = uploader;
+        this.enrichers = enrichers != null ? enrichers : List.of();
+        this.ipColumnMode = ipColumnMode != null ? ipColumnMode : IpColumnMode.STRING;
+        this.quarantine = quarantine;
+        this.schema = LogLineParser.buildOrcFileSchema(this.ipColumnMode, this.enrichers);
     }
 
     public int getLinesProcessed() {
         return linesProcessed;
     }
 
+    /**
+     * @return the number of lines that could not be converted to ORC rows
+     */
+    public int getLinesQuarantined() {
+        return linesQuarantined;
+    }
+
+    /**
+     * @return true if the ORC data file was written and closed (and, if there is an uploader, its upload
+     * was started). This is set when run() finishes.
+     */
+    public boolean isDataFileWritten() {
+        return dataFileWritten;
+    }
+
     private FileSystem buildFileSystem() throws URISyntaxException, IOException {
         FileSystem fileSystem = new S3AFileSystem();
         String uriStr = "s3://" + orcBucket;
@@ -62,25 +160,88 @@ public class BatchToOrc implements Runnable {
         return fileSystem;
     }
 
-    private Writer buildWriter(FileSystem fileSystem, String key) throws IOException {
-        Path hadoopPath = new Path( key );
+    /**
+     * @return the path that the ORC file for key is written to: the key itself or, if there is an uploader,
+     * the local staging file for the key.
+     */
+    private Path writerPath(String key) {
+        return uploader != null ? new Path(uploader.stagingFile(orcBucket, key).getPath()) : new Path(key);
+    }
+
+    /**
+     * If there is an uploader, start the upload of the staged ORC file for key.
+     */
+    private void uploadFile(String key) {
+        if (uploader != null) {
+            uploader.upload(orcBucket, key, uploader.stagingFile(orcBucket, key));
+        }
+    }
+
+    private Writer buildWriter(FileSystem fileSystem, String key, TypeDescription fileSchema) throws IOException {
+        Path hadoopPath = writerPath( key );
         return OrcFile.createWriter(hadoopPath,
                 OrcFile.writerOptions(writerConfig)
                 .fileSystem( fileSystem)
-                .setSchema(BatchToOrc.schema)
+                .setSchema(fileSchema)
                 .overwrite(true));
     }
 
+    private void writeRollup(FileSystem fileSystem) throws IOException, ORCFileException {
+        String rollupPath = orcPathPrefix + ROLLUP_SUFFIX + "/" + domainName + "/" + rollupFilename;
+        Writer rollupWriter = buildWriter(fileSystem, rollupPath, rollupSchema);
+        try (WriteORCFile orcFileWriter = new WriteORCFile("bogus", rollupSchema)) {
+            orcFileWriter.setOrcWriter(rollupWriter);
+            for (List<Object> row : rollup.summaryRows()) {
+                orcFileWriter.writeRow(row);
+            }
+        }
+        uploadFile(rollupPath);
+        logger.info("writeRollup: wrote {} (hits: {})", rollupPath, rollup.getHits());
+    }
 
-    private void processLine(WriteORCFile orcFileWriter, LogLineParser parser, String line) throws ORCFileException {
+
+    private void quarantineLine(String key, LineQuarantine.Reason reason, String line) {
+        metrics.parseFailed();
+        linesQuarantined++;
+        if (quarantine != null) {
+            quarantine.add(key, reason, line);
+        }
+    }
+
+    private void processChunk(WriteORCFile orcFileWriter, LogLineParser parser, LogChunk chunk) throws ORCFileException {
+        for (String line : chunk.lines()) {
+            processLine(orcFileWriter, parser, chunk.key(), line);
+        }
+    }
+
+    private void processLine(WriteORCFile orcFileWriter, LogLineParser parser, String key, String line) throws ORCFileException {
         try {
+            // the clock reads and histogram updates are taken for a sample of the lines, not on every row
+            final boolean timed = (++timingCounter & (TIMING_SAMPLE - 1)) == 0;
+            long parseStart = timed ? System.nanoTime() : 0;
             List<Object> row = parser.processLogfileLine(line);
+            if (timed) {
+                metrics.getParseTime().recordSince(parseStart);
+            }
             if (! row.isEmpty()) {
+                long writeStart = timed ? System.nanoTime() : 0;
                 orcFileWriter.writeRow(row);
+                if (timed) {
+                    metrics.getOrcWriteTime().recordSince(writeStart);
+                }
+                metrics.rowWritten();
                 linesProcessed++;
+                if (rollup != null) {
+                    rollup.addRow(row);
+                }
+            } else {
+                quarantineLine(key, LineQuarantine.Reason.NO_MATCH, line);
             }
         } catch (ParseException e) {
-            logger.error("run: log parsing error");
+            quarantineLine(key, LineQuarantine.Reason.BAD_DATE, line);
+        } catch (NumberFormatException e) {
+            // e.g., a "-" HTTP status or total time
+            quarantineLine(key, LineQuarantine.Reason.BAD_NUMBER, line);
         }
     }
 
@@ -88,33 +249,77 @@ public class BatchToOrc implements Runnable {
     public void run() {
         try {
             String orcFilePath = orcPathPrefix + "/" + domainName + "/" + orcFilename;
-            FileSystem s3FileSystem = buildFileSystem();
-            Writer fileWriter = buildWriter(s3FileSystem, orcFilePath);
+            FileSystem s3FileSystem = uploader != null ? uploader.getStagingFileSystem() : buildFileSystem();
+            Writer fileWriter = buildWriter(s3FileSystem, orcFilePath, schema);
+            long closeStart = 0;
+            boolean closed = false;
             try (WriteORCFile orcFileWriter = new WriteORCFile("bogus", schema)) {
                 orcFileWriter.setOrcWriter(fileWriter); // set the S3 ORC writer
-                LogLineParser parser = new LogLineParser();
+                LogLineParser parser = new LogLineParser(enrichers, ipColumnMode);
+                ResourceUsage resourceUsage = new ResourceUsage();
                 boolean processingBatch = true;
                 while (processingBatch) {
                     try {
-                        String line = logLineQueue.take();
-                        processLine(orcFileWriter, parser, line);
+                        LogChunk chunk = logLineQueue.take();
+                        processChunk(orcFileWriter, parser, chunk);
                     } catch (InterruptedException e) {
                         if (! logLineQueue.isEmpty()) {
-                            List<String> remainingElem = new ArrayList<>();
+                            List<LogChunk> remainingElem = new ArrayList<>();
                             logLineQueue.drainTo(remainingElem);
-                            for (String line : remainingElem) {
-                                processLine(orcFileWriter, parser, line);
+                            for (LogChunk chunk : remainingElem) {
+                                processChunk(orcFileWriter, parser, chunk);
                             }
                         }
                         processingBatch = false;
                     }
                 } // while
+                logger.info("run: {} {}, {} lines quarantined", orcFilename, resourceUsage.report(linesProcessed), linesQuarantined);
+                logger.info("run: {} column dictionaries and enrichers: {}", orcFilename, parser.dictionaryStats());
+                closeStart = System.nanoTime();
+                // the file is closed at the end of the try. If the close fails, closed is reset by the catch
+                closed = true;
             } catch (ORCFileException e) {
                 logger.error("run: {}", e.getLocalizedMessage());
+                closed = false; // the ORC file is incomplete
             } // orcFileWriter
+            if (closed) {
+                metrics.getOrcCloseTime().recordSince(closeStart);
+                uploadFile(orcFilePath);
+                dataFileWritten = true;
+            } else if (uploader != null) {
+                File stagedFile = uploader.stagingFile(orcBucket, orcFilePath);
+                if (stagedFile.exists() && ! stagedFile.delete()) {
+                    logger.warn("run: could not delete the incomplete staged file {}", stagedFile);
+                }
+            }
+            if (rollup != null && ! deferRollup && ! dataFileWritten) {
+                logger.error("run: {}: the ORC file was not written, so the rollup is not written", orcFilename);
+            } else if (rollup != null && ! deferRollup) {
+                try {
+                    writeRollup(s3FileSystem);
+                } catch (ORCFileException e) {
+                    logger.error("run: rollup: {}", e.getLocalizedMessage());
+                }
+            }
         } catch (URISyntaxException | IOException e) {
             logger.error("run: {}", e.getLocalizedMessage());
         }
     }
 
+    /**
+     * Write the rollup of a part that was built with deferRollup, after the rollups of the other parts
+     * of the day have been merged into it. This is called after run() has finished, and only if all of the
+     * parts were written.
+     */
+    void writeDeferredRollup() {
+        if (rollup != null && dataFileWritten) {
+            try {
+                FileSystem fileSystem = uploader != null ? uploader.getStagingFileSystem() : buildFileSystem();
+                writeRollup(fileSystem);
+            } catch (ORCFileException | URISyntaxException | IOException e) {
+                logger.error("writeDeferredRollup: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
 }
@@ -0,0 +1,170 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+/**
+ * <p>
+ *     An IPv4 or IPv6 CIDR block (e.g., 10.1.0.0/16 or 2001:db8::/32), as an inclusive range of addresses.
+ * </p>
+ * <p>
+ *     An address without a prefix length is a block with a single address. The range bounds use the
+ *     representation of IpAddressParser: an IPv4 address is a long between 0 and 2^32 - 1 and an IPv6 address
+ *     is two longs (the high and low 64 bits) that compare as unsigned values. This is also the representation
+ *     of the remote_ip_v4 and remote_ip_v6 columns (see IpColumnMode), so an IPv4 block can be pushed down to
+ *     the ORC reader as a BETWEEN range on remote_ip_v4.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public final class CidrRange {
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+    private static final long IPV4_MASK = 0xffffffffL;
+    private final boolean ipv4;
+    private final long startHi;
+    private final long startLo;
+    private final long endHi;
+    private final long endLo;
+
+    private CidrRange(boolean ipv4, long startHi, long startLo, long endHi, long endLo) {
+        this.ipv4 = ipv4;
+        this.startHi = startHi;
+        this.startLo = startLo;
+        this.endHi = endHi;
+        this.endLo = endLo;
+    }
+
+    /**
+     * @param cidr an address followed by an optional /prefix length
+     */
+    public static CidrRange parse(String cidr) throws LogReaderException {
+        String text = cidr.trim();
+        int slashIx = text.indexOf('/');
+        String address = slashIx >= 0 ? text.substring(0, slashIx) : text;
+        CidrRange range;
+        long ipv4Address = IpAddressParser.parseIpv4(address);
+        if (ipv4Address != IpAddressParser.NOT_IPV4) {
+            int prefix = prefixLength(cidr, text, slashIx, IPV4_BITS);
+            long mask = prefix == 0 ? 0 : (IPV4_MASK << (IPV4_BITS - prefix)) & IPV4_MASK;
+            long start = ipv4Address & mask;
+            range = new CidrRange(true, 0, start, 0, start | (~mask & IPV4_MASK));
+        } else {
+            long[] ipv6Address = new long[2];
+            if (! IpAddressParser.parseIpv6(address, ipv6Address)) {
+                throw new LogReaderException("CidrRange: " + cidr + " is not an IPv4 or IPv6 address");
+            }
+            int prefix = prefixLength(cidr, text, slashIx, IPV6_BITS);
+            long hiMask = highBits(prefix);
+            long loMask = highBits(prefix - Long.SIZE);
+            long start0 = ipv6Address[0] & hiMask;
+            long start1 = ipv6Address[1] & loMask;
+            range = new CidrRange(false, start0, start1, start0 | ~hiMask, start1 | ~loMask);
+        }
+        return range;
+    }
+
+    private static int prefixLength(String cidr, String text, int slashIx, int maxBits) throws LogReaderException {
+        int prefix = maxBits;
+        if (slashIx >= 0) {
+            try {
+                prefix = Integer.parseInt(text.substring(slashIx + 1));
+            } catch (NumberFormatException e) {
+                prefix = -1;
+            }
+            if (prefix < 0 || prefix > maxBits) {
+                throw new LogReaderException("CidrRange: bad prefix length in " + cidr);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * @return a long with the high bits set, for bits between 0 and 64 (clamped)
+     */
+    private static long highBits(int bits) {
+        long mask;
+        if (bits <= 0) {
+            mask = 0;
+        } else if (bits >= Long.SIZE) {
+            mask = -1L;
+        } else {
+            mask = -1L << (Long.SIZE - bits);
+        }
+        return mask;
+    }
+
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int cmp = Long.compareUnsigned(hi1, hi2);
+        return cmp != 0 ? cmp : Long.compareUnsigned(lo1, lo2);
+    }
+
+    public boolean isIpv4() { return ipv4; }
+
+    /**
+     * @return the first IPv4 address of the block (for an IPv4 block)
+     */
+    public long getIpv4Start() { return startLo; }
+
+    /**
+     * @return the last IPv4 address of the block (for an IPv4 block)
+     */
+    public long getIpv4End() { return endLo; }
+
+    /**
+     * @return true if this is an IPv4 block that contains the IPv4 address
+     */
+    public boolean containsIpv4(long address) {
+        return ipv4 && address >= startLo && address <= endLo;
+    }
+
+    /**
+     * @return true if this is an IPv6 block that contains the IPv6 address hi, lo
+     */
+    public boolean containsIpv6(long hi, long lo) {
+        return ! ipv4 && compare(startHi, startLo, hi, lo) <= 0 && compare(hi, lo, endHi, endLo) <= 0;
+    }
+
+    /**
+     * @return true if the address text in s[start, end) is in this block
+     */
+    public boolean contains(CharSequence s, int start, int end, long[] ipv6Address) {
+        boolean contains;
+        if (ipv4) {
+            long address = IpAddressParser.parseIpv4(s, start, end);
+            contains = address != IpAddressParser.NOT_IPV4 && containsIpv4(address);
+        } else {
+            contains = IpAddressParser.parseIpv6(s, start, end, ipv6Address) && containsIpv6(ipv6Address[0], ipv6Address[1]);
+        }
+        return contains;
+    }
+
+    /**
+     * @return a remote_ip_v4 value as dotted IPv4 text
+     */
+    public static String ipv4ToString(long address) {
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+    /**
+     * @return a 128 bit address as eight colon separated hex groups (without :: compression)
+     */
+    public static String ipv6ToString(long hi, long lo) {
+        StringBuilder builder = new StringBuilder();
+        for (int group = 0; group < 8; group++) {
+            long word = group < 4 ? hi : lo;
+            int shift = 48 - 16 * (group % 4);
+            if (group > 0) {
+                builder.append(':');
+            }
+            builder.append(Long.toHexString((word >>> shift) & 0xffff));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return ipv4 ? ipv4ToString(startLo) + "-" + ipv4ToString(endLo) : ipv6ToString(startHi, startLo) + "-" + ipv6ToString(endHi, endLo);
+    }
+}
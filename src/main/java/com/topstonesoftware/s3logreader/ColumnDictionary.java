@@ -0,0 +1,118 @@
+/*
+    This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     A bounded dictionary that returns a canonical String for a region of a log line.
+ * </p>
+ * <p>
+ *     Columns like bucket_name, operation, end_point and http_status only have a few hundred distinct values
+ *     per day. The dictionary hashes the characters of the field in place in the log line, so a value that
+ *     is already in the dictionary is returned without allocating a new String.
+ * </p>
+ * <p>
+ *     When the dictionary is full it is cleared. If a column fills the dictionary more than MAX_EVICTIONS
+ *     times, it is not a low cardinality column and the dictionary is disabled. After that, each value is
+ *     returned as a new String, which is the same cost as Matcher.group()
+ * </p>
+ * <p>
+ *     This class is not thread safe. Each LogLineParser has its own dictionaries.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class ColumnDictionary {
+    private static final int MAX_EVICTIONS = 4;
+    private final int maxEntries;
+    private final int mask;
+    private final String[] table;
+    private final int[] hashes;
+    private int size = 0;
+    private int evictions = 0;
+    private boolean enabled = true;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxEntries the maximum number of distinct values held by the dictionary. The hash table
+     *                   is sized so that it is never more than half full.
+     */
+    public ColumnDictionary(int maxEntries) {
+        this.maxEntries = Math.max(maxEntries, 2);
+        int capacity = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.table = new String[capacity];
+        this.hashes = new int[capacity];
+    }
+
+    private static int hash(String line, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + line.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void evict() {
+        Arrays.fill(table, null);
+        size = 0;
+        evictions++;
+        if (evictions > MAX_EVICTIONS) {
+            enabled = false;
+        }
+    }
+
+    /**
+     * Return the canonical String for line[start, end)
+     *
+     * @param line the log line
+     * @param start the start index of the field (inclusive). A negative start (an unmatched
+     *              regular expression group) returns null.
+     * @param end the end index of the field (exclusive)
+     * @return the canonical String for the field, or null if the field was not present.
+     */
+    public String intern(String line, int start, int end) {
+        if (start < 0) {
+            return null;
+        }
+        if (! enabled) {
+            misses++;
+            return line.substring(start, end);
+        }
+        final int len = end - start;
+        final int h = hash(line, start, end);
+        int ix = h & mask;
+        String entry;
+        while ((entry = table[ix]) != null) {
+            if (hashes[ix] == h && entry.length() == len && entry.regionMatches(0, line, start, len)) {
+                hits++;
+                return entry;
+            }
+            ix = (ix + 1) & mask;
+        }
+        misses++;
+        String value = line.substring(start, end);
+        if (size == maxEntries) {
+            evict();
+            if (! enabled) {
+                return value;
+            }
+            ix = h & mask;
+        }
+        table[ix] = value;
+        hashes[ix] = h;
+        size++;
+        return value;
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    public long getHits() { return hits; }
+
+    public long getMisses() { return misses; }
+}
@@ -0,0 +1,57 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import org.apache.orc.TypeDescription;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Add derived columns to the ORC rows that are built from the log lines.
+ * </p>
+ * <p>
+ *     The derived columns follow the log line columns in the ORC schema, in the order of the enrichers
+ *     that are passed to LogLineParser. An enricher is shared by the BatchToOrc threads, so addValues()
+ *     must be thread safe.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public interface ColumnEnricher {
+    /**
+     * @return the number of columns that are added to each row
+     */
+    int numFields();
+
+    /**
+     * Add the derived columns to the ORC schema
+     */
+    void addFields(TypeDescription schema);
+
+    /**
+     * Append the derived column values, in the order of addFields(), to an ORC row
+     *
+     * @param columnMap the log line fields
+     * @param row the ORC row
+     */
+    void addValues(Map<LogFieldEnum, String> columnMap, List<Object> row);
+
+    /**
+     * @return true if addValues() reads this log line field. The remote_ip field is only added to the column map
+     * if it is written to the ORC file or an enricher uses it.
+     */
+    default boolean usesField(LogFieldEnum field) {
+        return false;
+    }
+
+    /**
+     * @return statistics (e.g., cache hit rates) for logging
+     */
+    default String stats() {
+        return "";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ *     Open a log file object as an uncompressed stream of log lines. Plain text, gzip and zstd log files are
+ *     supported.
+ * </p>
+ * <p>
+ *     The compression is found from the key suffix (.gz, .gzip, .zst or .zstd) or, if the suffix is not known,
+ *     from the magic bytes at the start of the object. The object is decompressed as it is read, on the
+ *     S3LogReader thread, so the BatchToOrc thread sees the same lines as it would for a plain text log file.
+ * </p>
+ * <ul>
+ *     <li>zstd: the zstd-jni stream uses the RecyclingBufferPool, so the native decompression buffers are reused
+ *     by the reader threads rather than allocated for each object.</li>
+ *     <li>gzip: a large gzip object (between SPLIT_MIN_BYTES and SPLIT_MAX_BYTES) that was written as several
+ *     gzip members, for example an archive of concatenated daily log files, is read into memory and its members
+ *     are decompressed in parallel (see GzipMemberSplitter). The object is only read into memory if it fits in
+ *     the gzip memory budget that is shared by the reader threads. Other gzip objects are streamed through a
+ *     GZIPInputStream.</li>
+ * </ul>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public final class CompressedInput {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long SPLIT_MIN_BYTES = 4L * 1024 * 1024;
+    // the object is held in memory while its members are decompressed
+    static final long SPLIT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int MAGIC_BYTES = 4;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final int ZSTD_MAGIC = 0xfd2fb528; // little endian 28 b5 2f fd
+
+    /**
+     * The compression of a log file
+     */
+    public enum Compression {
+        NONE,
+        GZIP,
+        ZSTD
+    }
+
+    private CompressedInput() {}
+
+    /**
+     * @return the compression for a key suffix, or null if the suffix is not a compression suffix
+     */
+    private static Compression fromSuffix(String key) {
+        String lowerKey = key.toLowerCase(Locale.ROOT);
+        Compression compression = null;
+        if (lowerKey.endsWith(".gz") || lowerKey.endsWith(".gzip")) {
+            compression = Compression.GZIP;
+        } else if (lowerKey.endsWith(".zst") || lowerKey.endsWith(".zstd")) {
+            compression = Compression.ZSTD;
+        }
+        return compression;
+    }
+
+    /**
+     * @return the key without a compression suffix (e.g., logs/2021-06-17-01-02-03-ABCD.gz is logs/2021-06-17-01-02-03-ABCD)
+     */
+    public static String stripSuffix(String key) {
+        String strippedKey = key;
+        if (fromSuffix(key) != null) {
+            strippedKey = key.substring(0, key.lastIndexOf('.'));
+        }
+        return strippedKey;
+    }
+
+    /**
+     * @param header the first bytes of the object
+     * @param length the number of bytes in header
+     */
+    static Compression fromMagic(byte[] header, int length) {
+        Compression compression = Compression.NONE;
+        if (length >= 2 && (header[0] & 0xff) == GZIP_MAGIC_0 && (header[1] & 0xff) == GZIP_MAGIC_1) {
+            compression = Compression.GZIP;
+        } else if (length >= MAGIC_BYTES) {
+            int magic = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16 | (header[3] & 0xff) << 24;
+            if (magic == ZSTD_MAGIC) {
+                compression = Compression.ZSTD;
+            }
+        }
+        return compression;
+    }
+
+    /**
+     * Find the compression of a stream from its key and, if necessary, its first bytes. The stream must
+     * support mark() and reset().
+     */
+    static Compression detect(String key, InputStream markableStream) throws IOException {
+        Compression compression = fromSuffix(key);
+        if (compression == null) {
+            byte[] header = new byte[MAGIC_BYTES];
+            markableStream.mark(MAGIC_BYTES);
+            int length = markableStream.readNBytes(header, 0, MAGIC_BYTES);
+            markableStream.reset();
+            compression = fromMagic(header, length);
+        }
+        return compression;
+    }
+
+    /**
+     * @param key the S3 key of the log file
+     * @param objectStream the log file object content
+     * @param contentLength the length of the object, or -1 if it is not known
+     * @return a stream of the uncompressed log file bytes. Closing this stream closes objectStream.
+     */
+    public static InputStream open(String key, InputStream objectStream, long contentLength) throws IOException {
+        BufferedInputStream bufferedStream = new BufferedInputStream(objectStream, BUFFER_SIZE);
+        InputStream logStream;
+        switch (detect(key, bufferedStream)) {
+            case GZIP -> {
+                if (contentLength >= SPLIT_MIN_BYTES && contentLength <= SPLIT_MAX_BYTES && GzipMemberSplitter.reserve(contentLength)) {
+                    byte[] compressed;
+                    try {
+                        compressed = bufferedStream.readAllBytes();
+                        bufferedStream.close();
+                    } catch (IOException e) {
+                        GzipMemberSplitter.release(contentLength);
+                        throw e;
+                    }
+                    logStream = GzipMemberSplitter.decompress(compressed, contentLength);
+                } else {
+                    logStream = new GZIPInputStream(bufferedStream, BUFFER_SIZE);
+                }
+            }
+            case ZSTD -> logStream = new ZstdInputStreamNoFinalizer(bufferedStream, RecyclingBufferPool.INSTANCE);
+            default -> logStream = bufferedStream;
+        }
+        return logStream;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * <p>
+ *     A bounded, thread safe, least recently used cache.
+ * </p>
+ * <p>
+ *     The cache is divided into stripes by the hash of the key. Each stripe is an access ordered LinkedHashMap
+ *     that is locked while it is read or updated, so threads that look up keys in different stripes do not
+ *     contend. Each stripe holds at most capacity / NUM_STRIPES entries and evicts its least recently used entry
+ *     when it is full. The value for a missing key is computed outside of the lock, so two threads that miss
+ *     on the same key may both compute it.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int NUM_STRIPES = 16;
+    private final Stripe<K, V>[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Stripe<K, V> extends LinkedHashMap<K, V> {
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    /**
+     * @param capacity the maximum number of entries in the cache
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int capacity) {
+        int stripeEntries = Math.max(capacity / NUM_STRIPES, 1);
+        stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe<>(stripeEntries);
+        }
+    }
+
+    private Stripe<K, V> stripe(K key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * @return the cached value for key or, if the key is not in the cache, the value computed by loader
+     * (which is added to the cache)
+     */
+    public V get(K key, Function<K, V> loader) {
+        Stripe<K, V> stripe = stripe(key);
+        V value;
+        synchronized (stripe) {
+            value = stripe.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            value = loader.apply(key);
+            synchronized (stripe) {
+                stripe.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+}
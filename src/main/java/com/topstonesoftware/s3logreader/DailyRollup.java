@@ -0,0 +1,192 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.topstonesoftware.sketch.Hash64;
+import com.topstonesoftware.sketch.HeavyHitters;
+import com.topstonesoftware.sketch.HyperLogLog;
+import org.apache.orc.TypeDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Compute daily summary aggregates while the log rows are being written to the ORC file.
+ * </p>
+ * <p>
+ *     Most queries against the log ORC files compute the same aggregates: hits per key, a breakdown by
+ *     HTTP status, the top referrers and the number of unique visitor IP addresses. A DailyRollup sees each
+ *     row as it is written and computes these aggregates in a single pass. The unique IP count is a
+ *     HyperLogLog estimate. The top keys and referrers are Count-Min heavy hitter estimates. The status
+ *     breakdown and the total hit count are exact.
+ * </p>
+ * <p>
+ *     The result is written as a small "long format" ORC file, with one row per metric value:
+ * </p>
+ * <pre>
+ *     log_date    domain                metric        item                        value
+ *     2021-06-17  topstonesoftware.com  hits          (null)                      12345
+ *     2021-06-17  topstonesoftware.com  unique_ips    (null)                        678
+ *     2021-06-17  topstonesoftware.com  status        404                            91
+ *     2021-06-17  topstonesoftware.com  top_key       index.html                   4321
+ *     2021-06-17  topstonesoftware.com  top_referrer  "https://www.google.com/"      99
+ * </pre>
+ * <p>
+ *     If the log rows only have the numeric remote IP columns (IpColumnMode.NUMERIC), the unique IP count is
+ *     computed from hashes of the numeric addresses.
+ * </p>
+ * <p>
+ *     This class is not thread safe. A DailyRollup is updated by a single BatchToOrc thread. Rollups for
+ *     the same day can be combined with merge().
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class DailyRollup {
+    public static final String HITS_METRIC = "hits";
+    public static final String UNIQUE_IPS_METRIC = "unique_ips";
+    public static final String STATUS_METRIC = "status";
+    public static final String TOP_KEY_METRIC = "top_key";
+    public static final String TOP_REFERRER_METRIC = "top_referrer";
+    private static final int TOP_K = 100;
+    // track more candidates than are reported so that items near the cut-off are not lost
+    private static final int CANDIDATES = 4 * TOP_K;
+    private static final int MAX_STATUS = 599;
+    private final String logDate;
+    private final String domainName;
+    private final int ipIx;
+    private final int ipv4Ix;
+    private final int ipv6Ix;
+    private final int keyIx;
+    private final int statusIx;
+    private final int referrerIx;
+    private final HyperLogLog uniqueIps = new HyperLogLog();
+    private final HeavyHitters topKeys = new HeavyHitters(CANDIDATES);
+    private final HeavyHitters topReferrers = new HeavyHitters(CANDIDATES);
+    private final long[] statusCounts = new long[MAX_STATUS + 1];
+    private long hits = 0;
+
+    /**
+     * @param logDate the date of the log batch (e.g., 2021-06-17)
+     * @param domainName the domain that the logs were collected for
+     * @param logSchema the schema of the rows that will be passed to addRow(). The rollup columns are
+     *                  located by name.
+     */
+    public DailyRollup(String logDate, String domainName, TypeDescription logSchema) {
+        this.logDate = logDate;
+        this.domainName = domainName;
+        List<String> fieldNames = logSchema.getFieldNames();
+        this.ipIx = fieldNames.indexOf(LogFieldEnum.REMOTE_IP.getFieldName());
+        this.ipv4Ix = fieldNames.indexOf(IpColumnMode.IPV4_COLUMN);
+        this.ipv6Ix = fieldNames.indexOf(IpColumnMode.IPV6_COLUMN);
+        this.keyIx = fieldNames.indexOf(LogFieldEnum.KEY.getFieldName());
+        this.statusIx = fieldNames.indexOf(LogFieldEnum.HTTP_STATUS.getFieldName());
+        this.referrerIx = fieldNames.indexOf(LogFieldEnum.REFERRER.getFieldName());
+    }
+
+    private static Object column(List<Object> row, int ix) {
+        return (ix >= 0) ? row.get(ix) : null;
+    }
+
+    /**
+     * Update the aggregates with a row that has been written to the ORC file.
+     */
+    public void addRow(List<Object> row) {
+        hits++;
+        Object ip = column(row, ipIx);
+        if (ip != null) {
+            uniqueIps.add(ip.toString());
+        } else if (ipIx < 0) {
+            addNumericIp(column(row, ipv4Ix), column(row, ipv6Ix));
+        }
+        Object key = column(row, keyIx);
+        if (key != null) {
+            topKeys.add(key.toString());
+        }
+        Object referrer = column(row, referrerIx);
+        if (referrer != null) {
+            topReferrers.add(referrer.toString());
+        }
+        Object status = column(row, statusIx);
+        if (status instanceof Integer) {
+            int code = (Integer)status;
+            if (code >= 0 && code <= MAX_STATUS) {
+                statusCounts[code]++;
+            }
+        }
+    }
+
+    private void addNumericIp(Object ipv4, Object ipv6) {
+        if (ipv4 instanceof Long) {
+            uniqueIps.addHash(Hash64.mix((Long)ipv4));
+        } else if (ipv6 instanceof byte[]) {
+            byte[] bytes = (byte[])ipv6;
+            uniqueIps.addHash(Hash64.mix(ipv6Word(bytes, 0) ^ Hash64.mix(ipv6Word(bytes, Long.BYTES))));
+        }
+    }
+
+    private static long ipv6Word(byte[] bytes, int offset) {
+        long word = 0;
+        for (int i = offset; i < offset + Long.BYTES && i < bytes.length; i++) {
+            word = (word << 8) | (bytes[i] & 0xff);
+        }
+        return word;
+    }
+
+    public long getHits() { return hits; }
+
+    public void merge(DailyRollup other) {
+        hits += other.hits;
+        uniqueIps.merge(other.uniqueIps);
+        topKeys.merge(other.topKeys);
+        topReferrers.merge(other.topReferrers);
+        for (int i = 0; i <= MAX_STATUS; i++) {
+            statusCounts[i] += other.statusCounts[i];
+        }
+    }
+
+    public static TypeDescription buildOrcFileSchema() {
+        TypeDescription schema = TypeDescription.createStruct();
+        schema.addField("log_date", TypeDescription.createString());
+        schema.addField("domain", TypeDescription.createString());
+        schema.addField("metric", TypeDescription.createString());
+        schema.addField("item", TypeDescription.createString());
+        schema.addField("value", TypeDescription.createLong());
+        return schema;
+    }
+
+    private List<Object> summaryRow(String metric, String item, long value) {
+        List<Object> row = new ArrayList<>();
+        row.add(logDate);
+        row.add(domainName);
+        row.add(metric);
+        row.add(item);
+        row.add(value);
+        return row;
+    }
+
+    /**
+     * @return the summary rows, in the order of the schema returned by buildOrcFileSchema()
+     */
+    public List<List<Object>> summaryRows() {
+        List<List<Object>> rows = new ArrayList<>();
+        rows.add(summaryRow(HITS_METRIC, null, hits));
+        rows.add(summaryRow(UNIQUE_IPS_METRIC, null, uniqueIps.estimate()));
+        for (int code = 0; code <= MAX_STATUS; code++) {
+            if (statusCounts[code] > 0) {
+                rows.add(summaryRow(STATUS_METRIC, Integer.toString(code), statusCounts[code]));
+            }
+        }
+        for (Map.Entry<String, Long> entry : topKeys.topK(TOP_K)) {
+            rows.add(summaryRow(TOP_KEY_METRIC, entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, Long> entry : topReferrers.topK(TOP_K)) {
+            rows.add(summaryRow(TOP_REFERRER_METRIC, entry.getKey(), entry.getValue()));
+        }
+        return rows;
+    }
+}
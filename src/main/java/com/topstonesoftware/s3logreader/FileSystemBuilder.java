@@ -0,0 +1,50 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.s3a.S3AFileSystem;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * <p>
+ * Build a Hadoop FileSystem for reading and writing ORC files.
+ * </p>
+ * <p>
+ *     A path that starts with s3:// or s3a:// is opened with the S3AFileSystem, which authenticates with the
+ *     AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY environment variables. As with BatchToOrc, relative paths
+ *     on S3 are resolved against /user/[user name]. Any other path is opened on the local file system.
+ * </p>
+ */
+public class FileSystemBuilder {
+    private static final String S3_SCHEME = "s3";
+    private static final String S3A_SCHEME = "s3a";
+
+    private FileSystemBuilder() {}
+
+    public static boolean isS3Path(String path) {
+        return path.startsWith(S3_SCHEME + "://") || path.startsWith(S3A_SCHEME + "://");
+    }
+
+    public static FileSystem getFileSystem(String path, Configuration config) throws IOException {
+        FileSystem fileSystem;
+        if (isS3Path(path)) {
+            try {
+                URI pathUri = new URI(path);
+                fileSystem = new S3AFileSystem();
+                fileSystem.initialize(new URI(pathUri.getScheme() + "://" + pathUri.getAuthority()), config);
+            } catch (URISyntaxException e) {
+                throw new IOException("getFileSystem: bad S3 path " + path, e);
+            }
+        } else {
+            fileSystem = FileSystem.getLocal(config);
+        }
+        return fileSystem;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.orc.TypeDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Look up the remote_ip of each log line in an IP range database and add the country and asn columns to
+ *     the ORC rows.
+ * </p>
+ * <p>
+ *     Joining the log table against a geo table in Athena is slow and expensive, so the country and ASN are
+ *     computed once, when the ORC file is written. The database is a local CSV (or tab separated) file with a
+ *     range on each line:
+ * </p>
+ * <pre>
+ *     start_ip,end_ip,country,asn
+ *     1.0.0.0,1.0.0.255,US,13335
+ *     2001:200::,2001:200:ffff:ffff:ffff:ffff:ffff:ffff,JP,2500
+ * </pre>
+ * <p>
+ *     A field may be quoted, so that it can contain a comma (e.g., "Korea, Republic of"), and "" in a quoted field
+ *     is a quote. The addresses may be IPv4 or IPv6 text, or decimal numbers for IPv4. The ASN may have an "AS" prefix.
+ *     Columns after the asn are ignored. An empty, "-" or "None" country and an ASN of 0 are written as null.
+ *     The IPv4 and IPv6 ranges must each be in increasing order and must not overlap. Blank lines, lines that
+ *     start with # and a header line are skipped.
+ * </p>
+ * <h4>
+ *     Memory and lookup cost
+ * </h4>
+ * <p>
+ *     The ranges are kept in two IpRangeTables, one for IPv4 and one for IPv6, of sorted primitive arrays. There
+ *     are no per range objects or maps. An IPv4 range uses 24 bytes and an IPv6 range uses 40 bytes, and the
+ *     country names are stored once. A full size database, for example about 500,000 IPv4 and 250,000 IPv6 ranges,
+ *     uses about 12 MB + 10 MB. The memory used is logged when the database is loaded. A lookup parses the address
+ *     in place (see IpAddressParser), into a per thread scratch array for IPv6, and does a binary search of about 19 steps over the IPv4 table. The lookup
+ *     count and the number of addresses that were not found are logged with the column dictionary statistics.
+ * </p>
+ * <p>
+ *     The tables are not changed after they are loaded, so the enricher can be shared by several BatchToOrc threads.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class GeoIpEnricher implements ColumnEnricher {
+    private static final Logger logger = LoggerFactory.getLogger(GeoIpEnricher.class);
+    public static final String COUNTRY_COL = "country";
+    public static final String ASN_COL = "asn";
+    private static final String COMMENT = "#";
+    private static final String AS_PREFIX = "AS";
+    private static final int NO_COUNTRY = -1;
+    private static final int NO_ASN = 0;
+    private static final long MAX_IPV4 = 0xffffffffL;
+    private static final int NOT_ADDRESS = 0;
+    private static final int IPV4 = 4;
+    private static final int IPV6 = 6;
+    private final IpRangeTable ipv4Table = new IpRangeTable(false);
+    private final IpRangeTable ipv6Table = new IpRangeTable(true);
+    private final String[] countryNames;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    // the enricher is shared by the BatchToOrc threads, so each thread has its own IPv6 address
+    private final ThreadLocal<long[]> ipv6Address = ThreadLocal.withInitial(() -> new long[2]);
+
+    public GeoIpEnricher(String databaseFile) throws LogReaderException {
+        long startTime = System.currentTimeMillis();
+        List<String> countryList = new ArrayList<>();
+        Map<String, Integer> countryIndex = new HashMap<>();
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(databaseFile), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNum = 0;
+            long[] start = new long[2];
+            long[] end = new long[2];
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                if (line.isBlank() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+                List<String> fields = splitFields(line);
+                if (fields.size() < 4) {
+                    skipped++;
+                    continue;
+                }
+                int startVersion = parseAddress(fields.get(0), start);
+                int endVersion = parseAddress(fields.get(1), end);
+                if (startVersion == NOT_ADDRESS || startVersion != endVersion) {
+                    // a header line, or a line that is not a range
+                    skipped++;
+                    continue;
+                }
+                String country = fields.get(2);
+                int countryIx = NO_COUNTRY;
+                if (! country.isEmpty() && ! country.equals("-") && ! country.equalsIgnoreCase("None")) {
+                    countryIx = countryIndex.computeIfAbsent(country, k -> {
+                        countryList.add(k);
+                        return countryList.size() - 1;
+                    });
+                }
+                int asn = parseAsn(fields.get(3));
+                IpRangeTable table = startVersion == IPV4 ? ipv4Table : ipv6Table;
+                if (! table.add(start[0], start[1], end[0], end[1], countryIx, asn)) {
+                    throw new LogReaderException("GeoIpEnricher: " + databaseFile + " line " + lineNum +
+                            ": the range is empty, out of order or overlaps the previous range");
+                }
+            }
+        } catch (IOException e) {
+            throw new LogReaderException("GeoIpEnricher: " + databaseFile + ": " + e.getLocalizedMessage(), e);
+        }
+        ipv4Table.trim();
+        ipv6Table.trim();
+        countryNames = countryList.toArray(new String[0]);
+        logger.info("GeoIpEnricher: {} IPv4 ranges, {} IPv6 ranges, {} countries, {} lines skipped, {} KB, loaded in {} ms",
+                ipv4Table.size(), ipv6Table.size(), countryNames.length, skipped,
+                (ipv4Table.memoryBytes() + ipv6Table.memoryBytes()) / 1024, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Split a comma or tab separated line into fields. A separator inside a quoted field is part of the field
+     * and "" inside a quoted field is a quote.
+     *
+     * @return the fields, without the quotes and trimmed
+     */
+    static List<String> splitFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (quoted && c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                field.append(c);
+                i++;
+            } else if (c == '"') {
+                quoted = ! quoted;
+            } else if (! quoted && (c == ',' || c == '\t')) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+            i++;
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Parse an address into address[0] (the high 64 bits) and address[1].
+     *
+     * @return IPV4, IPV6 or, if the text is not an address, NOT_ADDRESS
+     */
+    private static int parseAddress(String text, long[] address) {
+        int version = NOT_ADDRESS;
+        long ipv4 = IpAddressParser.parseIpv4(text);
+        if (ipv4 == IpAddressParser.NOT_IPV4 && ! text.isEmpty() && text.chars().allMatch(Character::isDigit) && text.length() <= 10) {
+            ipv4 = Long.parseLong(text);
+            if (ipv4 > MAX_IPV4) {
+                ipv4 = IpAddressParser.NOT_IPV4;
+            }
+        }
+        if (ipv4 != IpAddressParser.NOT_IPV4) {
+            address[0] = 0;
+            address[1] = ipv4;
+            version = IPV4;
+        } else if (IpAddressParser.parseIpv6(text, address)) {
+            version = IPV6;
+        }
+        return version;
+    }
+
+    private static int parseAsn(String text) {
+        String digits = text.regionMatches(true, 0, AS_PREFIX, 0, AS_PREFIX.length()) ? text.substring(AS_PREFIX.length()) : text;
+        int asn = NO_ASN;
+        try {
+            if (! digits.isEmpty()) {
+                asn = Integer.parseUnsignedInt(digits);
+            }
+        } catch (NumberFormatException e) {
+            asn = NO_ASN;
+        }
+        return asn;
+    }
+
+    @Override
+    public int numFields() {
+        return 2;
+    }
+
+    @Override
+    public void addFields(TypeDescription schema) {
+        schema.addField(COUNTRY_COL, TypeDescription.createString());
+        schema.addField(ASN_COL, TypeDescription.createLong());
+    }
+
+    @Override
+    public boolean usesField(LogFieldEnum field) {
+        return field == LogFieldEnum.REMOTE_IP;
+    }
+
+    @Override
+    public void addValues(Map<LogFieldEnum, String> columnMap, List<Object> row) {
+        String remoteIp = columnMap.get(LogFieldEnum.REMOTE_IP);
+        IpRangeTable table = null;
+        int ix = IpRangeTable.NOT_FOUND;
+        if (remoteIp != null) {
+            long ipv4 = IpAddressParser.parseIpv4(remoteIp);
+            if (ipv4 != IpAddressParser.NOT_IPV4) {
+                table = ipv4Table;
+                ix = table.find(0, ipv4);
+            } else {
+                long[] ipv6 = ipv6Address.get();
+                if (IpAddressParser.parseIpv6(remoteIp, ipv6)) {
+                    table = ipv6Table;
+                    ix = table.find(ipv6[0], ipv6[1]);
+                }
+            }
+        }
+        lookups.increment();
+        if (ix != IpRangeTable.NOT_FOUND) {
+            int countryIx = table.getCountry(ix);
+            int asn = table.getAsn(ix);
+            row.add(countryIx != NO_COUNTRY ? countryNames[countryIx] : null);
+            row.add(asn != NO_ASN ? Integer.toUnsignedLong(asn) : null);
+        } else {
+            notFound.increment();
+            row.add(null);
+            row.add(null);
+        }
+    }
+
+    @Override
+    public String stats() {
+        return "geo ip: lookups=" + lookups.sum() + " not found=" + notFound.sum();
+    }
+}
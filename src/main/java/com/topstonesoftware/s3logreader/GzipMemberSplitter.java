@@ -0,0 +1,439 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ *     Decompress the members of a multi-member gzip file in parallel.
+ * </p>
+ * <p>
+ *     A gzip file may be a sequence of complete gzip members (e.g., log files that were gzipped and then
+ *     concatenated into an archive). Each member can be decompressed without the others. The member boundaries
+ *     are not recorded anywhere, so the compressed bytes are scanned for gzip headers. A header that is found
+ *     inside the compressed data of a member is a false boundary. Candidate boundaries are filtered by parsing
+ *     the header and inflating the first few KB after it, which rejects almost all false boundaries.
+ * </p>
+ * <p>
+ *     The members are inflated on a shared thread pool, a few members ahead of the reader. A member is only
+ *     accepted if the inflater finishes exactly at the 8 byte trailer and the CRC-32 and length in the trailer
+ *     match. Since the members before a member that fails have been accepted, its start is a real boundary, and
+ *     the rest of the file, from that start, is decompressed sequentially by a GZIPInputStream. A file with a
+ *     single member is always decompressed sequentially.
+ * </p>
+ * <h4>
+ *     Memory budget
+ * </h4>
+ * <p>
+ *     Every reader thread could otherwise hold a 64 MB compressed file and a window of inflated members of up
+ *     to MAX_MEMBER_SIZE each. The compressed files and the inflated members are instead reserved from a process
+ *     wide budget of MEMORY_BUDGET_BYTES (a quarter of the maximum heap, at most 2 GB), which is shared by all of
+ *     the reader threads. CompressedInput reserves the compressed file before it reads it into memory, and streams
+ *     the file through a GZIPInputStream if the reservation fails. The size of a member is read from its trailer
+ *     and is reserved before the member is submitted to the thread pool, so the memory is reserved before it is
+ *     allocated. The window of members that are inflated ahead of the reader is limited to WINDOW members and
+ *     MAX_WINDOW_BYTES uncompressed bytes. A member's reservation is released when the reader moves to the next
+ *     member, and the compressed file's reservation is released when the stream is closed. Nothing waits for the
+ *     budget: if the next member cannot be reserved, and none are being inflated, the rest of the file is
+ *     decompressed sequentially.
+ * </p>
+ * <p>
+ *     The Inflaters are pooled, since each one has a native zlib stream that is otherwise only released by
+ *     Inflater.end() or the garbage collector.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+final class GzipMemberSplitter {
+    private static final Logger logger = LoggerFactory.getLogger(GzipMemberSplitter.class);
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int DEFLATE_METHOD = 8;
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+    private static final int RESERVED_FLAGS = 0xe0;
+    private static final int PROBE_BYTES = 4 * 1024;
+    // an uncompressed member that is larger than this is decompressed sequentially
+    private static final int MAX_MEMBER_SIZE = 256 * 1024 * 1024;
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    // the number of members that are inflated ahead of the reader
+    private static final int WINDOW = 2 * NUM_THREADS;
+    // the uncompressed bytes that are inflated ahead of the reader. The first member of the window is always allowed.
+    private static final long MAX_WINDOW_BYTES = 128L * 1024 * 1024;
+    // the compressed files and the inflated members that are held in memory by all of the readers
+    static final long MEMORY_BUDGET_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 4, 2L * 1024 * 1024 * 1024);
+    private static final int KB = 1024;
+    // the budget is counted in KB, so that it fits in the int permits of a Semaphore
+    private static final Semaphore memoryBudget = new Semaphore((int)(MEMORY_BUDGET_BYTES / KB));
+    private static final ExecutorService inflatePool = Executors.newFixedThreadPool(NUM_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "gzip-member");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ConcurrentLinkedQueue<Inflater> inflaterPool = new ConcurrentLinkedQueue<>();
+
+    private GzipMemberSplitter() {}
+
+    private static int toKb(long bytes) {
+        return (int)((bytes + KB - 1) / KB);
+    }
+
+    /**
+     * Reserve memory from the process wide budget, without waiting.
+     *
+     * @return true if the bytes were reserved. They must be released by release().
+     */
+    static boolean reserve(long bytes) {
+        return memoryBudget.tryAcquire(toKb(bytes));
+    }
+
+    static void release(long bytes) {
+        memoryBudget.release(toKb(bytes));
+    }
+
+    private static Inflater takeInflater() {
+        Inflater inflater = inflaterPool.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private static void returnInflater(Inflater inflater) {
+        inflater.reset();
+        inflaterPool.offer(inflater);
+    }
+
+    private static int littleEndianInt(byte[] data, int ix) {
+        return (data[ix] & 0xff) | (data[ix + 1] & 0xff) << 8 | (data[ix + 2] & 0xff) << 16 | (data[ix + 3] & 0xff) << 24;
+    }
+
+    private static int skipString(byte[] data, int ix, int end) throws IOException {
+        while (ix < end && data[ix] != 0) {
+            ix++;
+        }
+        if (ix >= end) {
+            throw new IOException("truncated gzip header");
+        }
+        return ix + 1;
+    }
+
+    /**
+     * @return the offset of the deflate data that follows the gzip header at start
+     */
+    private static int headerEnd(byte[] data, int start, int end) throws IOException {
+        if (end - start < HEADER_SIZE + TRAILER_SIZE || (data[start] & 0xff) != 0x1f || (data[start + 1] & 0xff) != 0x8b ||
+                data[start + 2] != DEFLATE_METHOD || (data[start + 3] & RESERVED_FLAGS) != 0) {
+            throw new IOException("not a gzip header");
+        }
+        int flags = data[start + 3];
+        int ix = start + HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            if (ix + 2 > end) {
+                throw new IOException("truncated gzip header");
+            }
+            ix += 2 + ((data[ix] & 0xff) | (data[ix + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            ix = skipString(data, ix, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            ix = skipString(data, ix, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            ix += 2;
+        }
+        if (ix > end - TRAILER_SIZE) {
+            throw new IOException("truncated gzip member");
+        }
+        return ix;
+    }
+
+    /**
+     * @return true if there is a gzip header at start that is followed by deflate data that can be inflated
+     */
+    private static boolean isMemberStart(byte[] data, int start) {
+        boolean memberStart;
+        Inflater inflater = takeInflater();
+        try {
+            int dataStart = headerEnd(data, start, data.length);
+            inflater.setInput(data, dataStart, Math.min(data.length - dataStart, PROBE_BYTES));
+            byte[] probe = new byte[PROBE_BYTES];
+            while (! inflater.finished() && ! inflater.needsInput() && inflater.inflate(probe) > 0) {
+                // inflate until the probe input is used
+            }
+            memberStart = ! inflater.needsDictionary();
+        } catch (IOException | DataFormatException e) {
+            memberStart = false;
+        } finally {
+            returnInflater(inflater);
+        }
+        return memberStart;
+    }
+
+    /**
+     * @return the offsets of the likely member starts. The first offset is 0.
+     */
+    static List<Integer> findMembers(byte[] data) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 1; i <= data.length - HEADER_SIZE - TRAILER_SIZE; i++) {
+            if ((data[i] & 0xff) == 0x1f && (data[i + 1] & 0xff) == 0x8b && data[i + 2] == DEFLATE_METHOD &&
+                    (data[i + 3] & RESERVED_FLAGS) == 0 && isMemberStart(data, i)) {
+                starts.add(i);
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * Inflate the member in data[start, end). The member must end exactly at end and its trailer must match.
+     */
+    static byte[] inflateMember(byte[] data, int start, int end) throws IOException {
+        int dataStart = headerEnd(data, start, end);
+        int trailer = end - TRAILER_SIZE;
+        int expectedCrc = littleEndianInt(data, trailer);
+        int expectedSize = littleEndianInt(data, trailer + 4);
+        if (expectedSize < 0 || expectedSize > MAX_MEMBER_SIZE) {
+            throw new IOException("gzip member too large to inflate in memory");
+        }
+        byte[] output = new byte[expectedSize];
+        Inflater inflater = takeInflater();
+        try {
+            inflater.setInput(data, dataStart, end - dataStart);
+            int outputLength = 0;
+            while (! inflater.finished()) {
+                int n = inflater.inflate(output, outputLength, output.length - outputLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || outputLength == output.length)) {
+                    throw new IOException("gzip member does not end at the next member");
+                }
+                outputLength += n;
+            }
+            if (outputLength != expectedSize || inflater.getRemaining() != TRAILER_SIZE) {
+                throw new IOException("gzip member length does not match its trailer");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(output, 0, outputLength);
+            if ((int)crc.getValue() != expectedCrc) {
+                throw new IOException("gzip member CRC does not match its trailer");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("gzip member: " + e.getLocalizedMessage(), e);
+        } finally {
+            returnInflater(inflater);
+        }
+        return output;
+    }
+
+    /**
+     * @return the uncompressed size of the member in data[start, end) from its trailer, or 0 if the member is
+     * too large to inflate in memory (inflateMember() fails without allocating the output)
+     */
+    private static long memberSize(byte[] data, int start, int end) {
+        long size = 0;
+        if (end - start >= HEADER_SIZE + TRAILER_SIZE) {
+            size = Integer.toUnsignedLong(littleEndianInt(data, end - 4));
+        }
+        return size <= MAX_MEMBER_SIZE ? size : 0;
+    }
+
+    /**
+     * @param compressed a complete gzip file
+     * @param reservedBytes the bytes that were reserved for the compressed file (see reserve()). They are
+     *                      released when the stream is closed, or if this throws.
+     * @return a stream of the uncompressed bytes of all of the members, in order
+     */
+    static InputStream decompress(byte[] compressed, long reservedBytes) throws IOException {
+        InputStream stream;
+        try {
+            List<Integer> starts = findMembers(compressed);
+            if (starts.size() < 2) {
+                stream = new BudgetStream(new GZIPInputStream(new ByteArrayInputStream(compressed), CompressedInput.BUFFER_SIZE),
+                        null, reservedBytes);
+            } else {
+                logger.debug("decompress: {} bytes, {} gzip members", compressed.length, starts.size());
+                MemberEnumeration members = new MemberEnumeration(compressed, starts);
+                stream = new BudgetStream(new SequenceInputStream(members), members, reservedBytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(reservedBytes);
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * The stream that is returned by decompress(). Closing it stops the inflation of the members that have not
+     * been read and releases the reservations.
+     */
+    private static class BudgetStream extends FilterInputStream {
+        // optional: null if the file is decompressed sequentially
+        private final MemberEnumeration members;
+        private final long reservedBytes;
+        private boolean closed = false;
+
+        BudgetStream(InputStream stream, MemberEnumeration members, long reservedBytes) {
+            super(stream);
+            this.members = members;
+            this.reservedBytes = reservedBytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (! closed) {
+                closed = true;
+                try {
+                    if (members != null) {
+                        // SequenceInputStream.close() reads the remaining elements, so stop them first
+                        members.stop();
+                    }
+                    super.close();
+                } finally {
+                    release(reservedBytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * The uncompressed members, in order. The members are inflated on the inflatePool, up to WINDOW members and
+     * MAX_WINDOW_BYTES ahead, as far as the memory budget allows. If a member cannot be inflated, or the memory for
+     * it cannot be reserved, the last element is a GZIPInputStream that reads the rest of the file from the start
+     * of that member.
+     */
+    private static class MemberEnumeration implements Enumeration<InputStream> {
+        private final byte[] compressed;
+        private final List<Integer> starts;
+        private final Deque<PendingMember> inflating = new ArrayDeque<>();
+        private int nextSubmit = 0;
+        private int nextMember = 0;
+        // the reserved bytes of the members that are being inflated
+        private long windowBytes = 0;
+        // the reserved bytes of the member that is being read
+        private long currentBytes = 0;
+        private boolean stopped = false;
+
+        private record PendingMember(Future<byte[]> inflated, long reservedBytes) {}
+
+        MemberEnumeration(byte[] compressed, List<Integer> starts) {
+            this.compressed = compressed;
+            this.starts = starts;
+            fillWindow();
+        }
+
+        private void fillWindow() {
+            boolean filling = true;
+            while (filling && nextSubmit < starts.size() && inflating.size() < WINDOW) {
+                final int start = starts.get(nextSubmit);
+                final int end = nextSubmit + 1 < starts.size() ? starts.get(nextSubmit + 1) : compressed.length;
+                long size = memberSize(compressed, start, end);
+                if ((inflating.isEmpty() || windowBytes + size <= MAX_WINDOW_BYTES) && reserve(size)) {
+                    inflating.add(new PendingMember(inflatePool.submit(() -> inflateMember(compressed, start, end)), size));
+                    windowBytes += size;
+                    nextSubmit++;
+                } else {
+                    filling = false;
+                }
+            }
+        }
+
+        /**
+         * Cancel the members that are being inflated and release the reservations. There are no more elements.
+         */
+        void stop() {
+            for (PendingMember pending : inflating) {
+                pending.inflated().cancel(true);
+                release(pending.reservedBytes());
+            }
+            inflating.clear();
+            release(currentBytes);
+            windowBytes = 0;
+            currentBytes = 0;
+            stopped = true;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return ! stopped && nextMember < starts.size();
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (! hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            // the previous member has been read
+            release(currentBytes);
+            currentBytes = 0;
+            fillWindow();
+            InputStream element;
+            PendingMember member = inflating.poll();
+            if (member == null) {
+                logger.warn("decompress: member {} at {}: the gzip memory budget is used, decompressing the rest sequentially",
+                        nextMember, starts.get(nextMember));
+                element = sequentialStream(starts.get(nextMember));
+                stop();
+            } else {
+                try {
+                    element = new ByteArrayInputStream(member.inflated().get());
+                    windowBytes -= member.reservedBytes();
+                    currentBytes = member.reservedBytes();
+                    nextMember++;
+                    fillWindow();
+                } catch (InterruptedException | ExecutionException e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    logger.warn("decompress: member {} at {}: {}, decompressing the rest sequentially", nextMember,
+                            starts.get(nextMember), e.getLocalizedMessage());
+                    windowBytes -= member.reservedBytes();
+                    release(member.reservedBytes());
+                    element = sequentialStream(starts.get(nextMember));
+                    stop();
+                }
+            }
+            return element;
+        }
+
+        private InputStream sequentialStream(int start) {
+            try {
+                return new GZIPInputStream(new ByteArrayInputStream(compressed, start, compressed.length - start), CompressedInput.BUFFER_SIZE);
+            } catch (IOException e) {
+                // the start of the member has been checked, so this should not happen. The error is reported by the reader.
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw e;
+                    }
+                };
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.topstonesoftware.javaorc.ORCFileException;
+import com.topstonesoftware.javaorc.WriteORCFile;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * <p>
+ *     Convert a list of S3 log files into one ORC file that is built in memory and written to S3 with a
+ *     single putObject.
+ * </p>
+ * <p>
+ *     This is the conversion path for short lived processes, like a function that is triggered by S3 event
+ *     notifications (see S3EventHandler), where only a few log files are converted and the startup time matters.
+ *     LogsToOrc starts a pool of S3LogReader threads and a BatchToOrc thread that writes through an
+ *     S3AFileSystem. Here the log files are read and converted on the calling thread, the ORC file is written to a
+ *     MemoryFileSystem with a Configuration that does not load the Hadoop default resources, and the ORC bytes are
+ *     uploaded without copying the buffer. The ORC file must fit in memory, which it does for the few log files in
+ *     an event.
+ * </p>
+ * <p>
+ *     The time from the start of convert() to the first row and the total time are logged and returned, so they
+ *     can be compared with the LogsToOrc path.
+ * </p>
+ * <p>
+ *     The ColumnEnrichers and the IpColumnMode are the same as the ones that are passed to LogsToOrc, so that
+ *     an ORC file written by an InMemoryConverter has the same schema as the files written by convert.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class InMemoryConverter {
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryConverter.class);
+    private static final String ORC_CONTENT_TYPE = "application/octet-stream";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final Path MEMORY_PATH = new Path("/convert.orc");
+    private final AmazonS3 s3Client;
+    private final List<ColumnEnricher> enrichers;
+    private final IpColumnMode ipColumnMode;
+    private final TypeDescription schema;
+    // don't load core-default.xml and core-site.xml
+    private final Configuration config = new Configuration(false);
+
+    /**
+     * The result of a conversion. The times are in milliseconds from the start of convert().
+     */
+    public record ConvertResult(String orcKey, long rows, long parseFailures, long orcBytes, double firstRowMillis, double totalMillis) {}
+
+    public InMemoryConverter(AmazonS3 s3Client) {
+        this(s3Client, List.of(), IpColumnMode.STRING);
+    }
+
+    /**
+     * @param s3Client the AmazonS3 client that the log files are read with and the ORC file is written with
+     * @param enrichers the ColumnEnrichers that add columns to each row (see LogLineParser)
+     * @param ipColumnMode the columns that the remote IP address is written to
+     */
+    public InMemoryConverter(AmazonS3 s3Client, List<ColumnEnricher> enrichers, IpColumnMode ipColumnMode) {
+        this.s3Client = s3Client;
+        this.enrichers = enrichers;
+        this.ipColumnMode = ipColumnMode;
+        this.schema = LogLineParser.buildOrcFileSchema(ipColumnMode, enrichers);
+    }
+
+    /**
+     * @return the ORC file name for a group of log files: the date suffix of the first log file key (as in the
+     * LogFollower delta files) or, if the key does not contain a date, the last path element of the key.
+     */
+    public static String orcFileName(String firstKey) {
+        String fileName;
+        if (LogFileBatcher.findDate(firstKey) != null) {
+            fileName = LogFollower.deltaFileName(firstKey);
+        } else {
+            fileName = CompressedInput.stripSuffix(firstKey.substring(firstKey.lastIndexOf('/') + 1)) + ".orc";
+        }
+        return fileName;
+    }
+
+    /**
+     * Read the log files in keys, convert the lines to ORC rows, and write the ORC file to s3://orcBucket/orcKey.
+     * The orcKey is used exactly as it is given.
+     */
+    public ConvertResult convert(String logBucket, List<String> keys, String orcBucket, String orcKey) throws LogReaderException {
+        final long startTime = System.nanoTime();
+        long firstRowTime = 0;
+        long rows = 0;
+        long parseFailures = 0;
+        MemoryFileSystem memoryFileSystem = new MemoryFileSystem(config);
+        try {
+            Writer writer = OrcFile.createWriter(MEMORY_PATH, OrcFile.writerOptions(config)
+                    .fileSystem(memoryFileSystem)
+                    .setSchema(schema)
+                    .overwrite(true));
+            try (WriteORCFile orcFileWriter = new WriteORCFile("bogus", schema)) {
+                orcFileWriter.setOrcWriter(writer);
+                LogLineParser parser = new LogLineParser(enrichers, ipColumnMode);
+                for (String key : keys) {
+                    S3Object s3Object = s3Client.getObject(logBucket, key);
+                    long contentLength = s3Object.getObjectMetadata().getContentLength();
+                    try (InputStream istream = CompressedInput.open(key, s3Object.getObjectContent(), contentLength)) {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(istream, StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (! line.isBlank()) {
+                                List<Object> row = parseLine(parser, line);
+                                if (! row.isEmpty()) {
+                                    orcFileWriter.writeRow(row);
+                                    if (rows == 0) {
+                                        firstRowTime = System.nanoTime();
+                                    }
+                                    rows++;
+                                } else {
+                                    parseFailures++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            MemoryFileSystem.FileBuffer orcFile = memoryFileSystem.getFile(MEMORY_PATH);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(orcFile.size());
+            metadata.setContentType(ORC_CONTENT_TYPE);
+            s3Client.putObject(orcBucket, orcKey, orcFile.toInputStream(), metadata);
+            long endTime = System.nanoTime();
+            ConvertResult result = new ConvertResult(orcKey, rows, parseFailures, orcFile.size(),
+                    firstRowTime > 0 ? (firstRowTime - startTime) / NANOS_PER_MILLI : 0,
+                    (endTime - startTime) / NANOS_PER_MILLI);
+            logger.info("convert: {} log files to s3://{}/{}: {} rows, {} parse failures, {} ORC bytes, first row: {} ms, total: {} ms",
+                    keys.size(), orcBucket, orcKey, rows, parseFailures, orcFile.size(),
+                    String.format("%.1f", result.firstRowMillis()), String.format("%.1f", result.totalMillis()));
+            return result;
+        } catch (IOException | ORCFileException e) {
+            throw new LogReaderException("convert: s3://" + orcBucket + "/" + orcKey + ": " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * @return the ORC row for a log line, or an empty list if the line can't be parsed. As in BatchToOrc, a bad
+     * date and a bad number (e.g., a "-" HTTP status or total time) are parse failures, so one bad line does not
+     * fail the conversion.
+     */
+    private static List<Object> parseLine(LogLineParser parser, String line) {
+        List<Object> row;
+        try {
+            row = parser.processLogfileLine(line);
+        } catch (ParseException | NumberFormatException e) {
+            row = List.of();
+        }
+        return row;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+/**
+ * <p>
+ *     Parse IPv4 and IPv6 address text into numbers, without creating intermediate Strings or InetAddress objects.
+ * </p>
+ * <p>
+ *     The text is read from a region of a CharSequence, so an address can be parsed in place from a log line.
+ *     An IPv4 address is returned as a long between 0 and 2^32 - 1. An IPv6 address is returned as two longs,
+ *     the high and low 64 bits, which compare as unsigned values. The IPv6 forms with :: compression and with
+ *     a trailing dotted IPv4 address (e.g., ::ffff:10.1.2.3) are supported.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public final class IpAddressParser {
+    public static final long NOT_IPV4 = -1;
+    private static final int IPV6_GROUPS = 8;
+    private static final int GROUP_BITS = 16;
+    private static final int MAX_OCTET = 255;
+
+    private IpAddressParser() {}
+
+    /**
+     * @return the IPv4 address in s[start, end) as a long, or NOT_IPV4 if the text is not an IPv4 address
+     */
+    public static long parseIpv4(CharSequence s, int start, int end) {
+        long value = 0;
+        int octet = -1;
+        int octets = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > MAX_OCTET) {
+                    return NOT_IPV4;
+                }
+            } else if (c == '.' && octet >= 0 && octets < 3) {
+                value = (value << 8) | octet;
+                octets++;
+                octet = -1;
+            } else {
+                return NOT_IPV4;
+            }
+        }
+        if (octet < 0 || octets != 3) {
+            return NOT_IPV4;
+        }
+        return (value << 8) | octet;
+    }
+
+    public static long parseIpv4(CharSequence s) {
+        return parseIpv4(s, 0, s.length());
+    }
+
+    /**
+     * Parse the IPv6 address in s[start, end). The groups are shifted into a 128 bit value in two longs, so no
+     * group array is allocated. If the address has a ::, the groups after it are the low bits of the value and
+     * the groups before it are shifted up over the zero groups at the end.
+     *
+     * @param result the high 64 bits of the address are returned in result[0] and the low 64 bits in result[1]
+     * @return true if the text is an IPv6 address
+     */
+    public static boolean parseIpv6(CharSequence s, int start, int end, long[] result) {
+        long hi = 0;
+        long lo = 0;
+        int n = 0;
+        int compressAt = -1;
+        int i = start;
+        if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+            compressAt = 0;
+            i = start + 2;
+        } else if (start < end && s.charAt(start) == ':') {
+            return false;
+        }
+        while (i < end) {
+            if (n == IPV6_GROUPS) {
+                return false;
+            }
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            boolean embeddedIpv4 = false;
+            while (i < end && s.charAt(i) != ':') {
+                char c = s.charAt(i);
+                if (c == '.') {
+                    embeddedIpv4 = true;
+                    break;
+                }
+                int digit = Character.digit(c, 16);
+                if (digit < 0 || ++digits > 4) {
+                    return false;
+                }
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (embeddedIpv4) {
+                // a dotted IPv4 address is the last two groups
+                long ipv4 = parseIpv4(s, groupStart, end);
+                if (ipv4 == NOT_IPV4 || n > IPV6_GROUPS - 2) {
+                    return false;
+                }
+                hi = (hi << 32) | (lo >>> 32);
+                lo = (lo << 32) | ipv4;
+                n += 2;
+                break;
+            }
+            if (digits == 0) {
+                return false;
+            }
+            hi = (hi << GROUP_BITS) | (lo >>> (Long.SIZE - GROUP_BITS));
+            lo = (lo << GROUP_BITS) | value;
+            n++;
+            if (i < end) {
+                i++; // skip the ':'
+                if (i < end && s.charAt(i) == ':') {
+                    if (compressAt >= 0) {
+                        return false;
+                    }
+                    compressAt = n;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+        if (compressAt >= 0) {
+            if (n == IPV6_GROUPS) {
+                return false;
+            }
+            // split the value into the groups before and after the ::, and shift the groups before it up
+            int tailBits = (n - compressAt) * GROUP_BITS;
+            int shift = (IPV6_GROUPS - n) * GROUP_BITS;
+            long tailHi = tailBits > Long.SIZE ? hi & ((1L << (tailBits - Long.SIZE)) - 1) : 0;
+            long tailLo = tailBits >= Long.SIZE ? lo : lo & ((1L << tailBits) - 1);
+            long headHi = hi ^ tailHi;
+            long headLo = lo ^ tailLo;
+            if (compressAt == 0) {
+                hi = tailHi;
+                lo = tailLo;
+            } else if (shift >= Long.SIZE) {
+                hi = (headLo << (shift - Long.SIZE)) | tailHi;
+                lo = tailLo;
+            } else {
+                hi = (headHi << shift) | (headLo >>> (Long.SIZE - shift)) | tailHi;
+                lo = (headLo << shift) | tailLo;
+            }
+        } else if (n != IPV6_GROUPS) {
+            return false;
+        }
+        result[0] = hi;
+        result[1] = lo;
+        return true;
+    }
+
+    public static boolean parseIpv6(CharSequence s, long[] result) {
+        return parseIpv6(s, 0, s.length(), result);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+/**
+ * <p>
+ *     The columns that the remote IP address is written to.
+ * </p>
+ * <ul>
+ *     <li>STRING - the remote_ip string column (the original format)</li>
+ *     <li>BOTH - the remote_ip string column and the numeric remote_ip_v4 and remote_ip_v6 columns</li>
+ *     <li>NUMERIC - only the numeric remote_ip_v4 and remote_ip_v6 columns</li>
+ * </ul>
+ * <p>
+ *     remote_ip_v4 is a bigint with the IPv4 address as an unsigned 32 bit value, so a CIDR block is a
+ *     BETWEEN range that can be checked against the ORC column statistics. remote_ip_v6 is a 16 byte, big endian
+ *     binary value. In each row, one of the numeric columns is null.
+ * </p>
+ * <p>
+ *     The numeric columns are written after the log line columns (see LogLineParser.buildOrcFileSchema()), so
+ *     BOTH files can be added to an existing STRING table by appending the two columns to the table definition.
+ *     NUMERIC files do not have the remote_ip column, so the later columns move and they need a new table definition.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public enum IpColumnMode {
+    STRING,
+    BOTH,
+    NUMERIC;
+
+    public static final String IPV4_COLUMN = "remote_ip_v4";
+    public static final String IPV6_COLUMN = "remote_ip_v6";
+
+    public boolean writeString() { return this != NUMERIC; }
+
+    public boolean writeNumeric() { return this != STRING; }
+}
@@ -0,0 +1,140 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     A sorted table of IP address ranges, each with a country index and an ASN, that is searched by binary search.
+ * </p>
+ * <p>
+ *     The table is stored in parallel primitive arrays, so a table with millions of ranges has a handful of objects
+ *     and the garbage collector does not have to trace it. An IPv4 table (wide = false) stores the start and end
+ *     addresses in one long each: 24 bytes per range. An IPv6 table stores each address as two longs: 40 bytes per
+ *     range. The ranges must be added in increasing order and must not overlap.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+class IpRangeTable {
+    public static final int NOT_FOUND = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+    private final boolean wide;
+    private int size = 0;
+    private long[] startHi;
+    private long[] startLo;
+    private long[] endHi;
+    private long[] endLo;
+    private int[] countries;
+    private int[] asns;
+
+    /**
+     * @param wide true for 128 bit (IPv6) addresses, false for IPv4 addresses
+     */
+    IpRangeTable(boolean wide) {
+        this.wide = wide;
+        startLo = new long[INITIAL_CAPACITY];
+        endLo = new long[INITIAL_CAPACITY];
+        startHi = wide ? new long[INITIAL_CAPACITY] : null;
+        endHi = wide ? new long[INITIAL_CAPACITY] : null;
+        countries = new int[INITIAL_CAPACITY];
+        asns = new int[INITIAL_CAPACITY];
+    }
+
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int cmp = Long.compareUnsigned(hi1, hi2);
+        return cmp != 0 ? cmp : Long.compareUnsigned(lo1, lo2);
+    }
+
+    private void resize(int capacity) {
+        startLo = Arrays.copyOf(startLo, capacity);
+        endLo = Arrays.copyOf(endLo, capacity);
+        if (wide) {
+            startHi = Arrays.copyOf(startHi, capacity);
+            endHi = Arrays.copyOf(endHi, capacity);
+        }
+        countries = Arrays.copyOf(countries, capacity);
+        asns = Arrays.copyOf(asns, capacity);
+    }
+
+    /**
+     * Add a range. For an IPv4 table the high words are ignored.
+     *
+     * @return false if the range is empty or does not follow the previous range
+     */
+    boolean add(long rangeStartHi, long rangeStartLo, long rangeEndHi, long rangeEndLo, int country, int asn) {
+        if (! wide) {
+            rangeStartHi = 0;
+            rangeEndHi = 0;
+        }
+        if (compare(rangeStartHi, rangeStartLo, rangeEndHi, rangeEndLo) > 0) {
+            return false;
+        }
+        if (size > 0 && compare(wide ? endHi[size - 1] : 0, endLo[size - 1], rangeStartHi, rangeStartLo) >= 0) {
+            return false;
+        }
+        if (size == startLo.length) {
+            resize(size * 2);
+        }
+        startLo[size] = rangeStartLo;
+        endLo[size] = rangeEndLo;
+        if (wide) {
+            startHi[size] = rangeStartHi;
+            endHi[size] = rangeEndHi;
+        }
+        countries[size] = country;
+        asns[size] = asn;
+        size++;
+        return true;
+    }
+
+    /**
+     * Release the unused capacity after all of the ranges have been added
+     */
+    void trim() {
+        resize(size);
+    }
+
+    int size() { return size; }
+
+    int getCountry(int ix) { return countries[ix]; }
+
+    int getAsn(int ix) { return asns[ix]; }
+
+    /**
+     * @return the number of bytes used by the arrays
+     */
+    long memoryBytes() {
+        long bytesPerRange = (wide ? 4L : 2L) * Long.BYTES + 2L * Integer.BYTES;
+        return bytesPerRange * startLo.length;
+    }
+
+    /**
+     * @return the index of the range that contains the address, or NOT_FOUND
+     */
+    int find(long hi, long lo) {
+        if (! wide) {
+            hi = 0;
+        }
+        // find the last range whose start is <= the address
+        int low = 0;
+        int high = size - 1;
+        int found = NOT_FOUND;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(wide ? startHi[mid] : 0, startLo[mid], hi, lo) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found != NOT_FOUND && compare(wide ? endHi[found] : 0, endLo[found], hi, lo) < 0) {
+            found = NOT_FOUND;
+        }
+        return found;
+    }
+}
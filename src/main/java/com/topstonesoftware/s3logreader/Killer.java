@@ -11,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -18,32 +19,62 @@ import java.util.Set;
  *  starts, it registers with this object. The S3LogReader threads write to a shared LinkedBlockingQueue which is
  *  read by a BatchToOrc thread.  When an S3LogReader threads terminates it deregisters. If the registration set (threadSet)
  *  is empty all S3LogReader threads have terminated and interrupt is sent to the batchToOrcThread to terminate this thread.
+ *  <p>
+ *  If the day is written as several ORC part files, there is a BatchToOrc thread and a queue for each part (shard).
+ *  All of the BatchToOrc threads are interrupted, and the lines read are counted for each shard so that they can be
+ *  checked against the lines processed by each BatchToOrc object.
+ *  </p>
  *
  * @author Ian Kaplan, Topstone Software Consulting
  */
 @Slf4j
 public class Killer {
     private static final Logger logger = LoggerFactory.getLogger(Killer.class);
-    private final Thread batchToOrcThread;
+    private final List<Thread> batchToOrcThreads;
     private final Set<Integer> threadSet = new HashSet<>();
+    private final int[] shardLinesProcessed;
     private int totalLinesProcessed = 0;
 
     public Killer(Thread batchToOrcThread) {
-        this.batchToOrcThread = batchToOrcThread;
+        this(List.of(batchToOrcThread));
+    }
+
+    /**
+     * @param batchToOrcThreads the BatchToOrc thread for each shard
+     */
+    public Killer(List<Thread> batchToOrcThreads) {
+        this.batchToOrcThreads = batchToOrcThreads;
+        this.shardLinesProcessed = new int[batchToOrcThreads.size()];
     }
 
     public int getTotalLinesProcessed() { return totalLinesProcessed; }
 
+    public synchronized int getShardLinesProcessed(int shard) { return shardLinesProcessed[shard]; }
+
     public synchronized void register(Integer threadID) {
         threadSet.add( threadID );
     }
 
-    @SneakyThrows
     public synchronized void removeID(Integer threadID, int numLines) {
+        int[] shardLines = new int[shardLinesProcessed.length];
+        shardLines[0] = numLines;
+        removeID(threadID, shardLines);
+    }
+
+    /**
+     * @param shardLines the number of lines that the thread queued for each shard
+     */
+    @SneakyThrows
+    public synchronized void removeID(Integer threadID, int[] shardLines) {
         if (threadSet.remove(threadID)) {
-            totalLinesProcessed += numLines;
+            for (int shard = 0; shard < shardLines.length; shard++) {
+                shardLinesProcessed[shard] += shardLines[shard];
+                totalLinesProcessed += shardLines[shard];
+            }
             if (threadSet.isEmpty()) {
-                batchToOrcThread.interrupt();
+                for (Thread batchToOrcThread : batchToOrcThreads) {
+                    batchToOrcThread.interrupt();
+                }
             }
         } else {
             final String msg = "removeID: error, thread ID not found in set";
@@ -0,0 +1,106 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     A concurrent, fixed memory histogram of durations in nanoseconds.
+ * </p>
+ * <p>
+ *     As in an HDR histogram, the buckets are log-linear: each power of two range is divided into SUB_BUCKETS
+ *     linear buckets, so the value reported for a quantile is within 1/SUB_BUCKETS (6.25%) of the recorded
+ *     value over the whole range of a long. Each bucket is a LongAdder, so threads that record values in the
+ *     same bucket (e.g., several ORC writers with similar row times) increment separate cells rather than one
+ *     shared counter. Recording a value is an index calculation and three LongAdder updates.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    private static int bucketIndex(long value) {
+        int ix;
+        if (value < SUB_BUCKETS) {
+            ix = (int)Math.max(value, 0);
+        } else {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            ix = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+        return ix;
+    }
+
+    /**
+     * @return the middle of the range of values that are counted in bucket ix
+     */
+    private static long bucketValue(int ix) {
+        long value;
+        if (ix < SUB_BUCKETS) {
+            value = ix;
+        } else {
+            int shift = ix / SUB_BUCKETS - 1;
+            long lower = (long)(SUB_BUCKETS + ix % SUB_BUCKETS) << shift;
+            value = lower + ((1L << shift) >>> 1);
+        }
+        return value;
+    }
+
+    public void record(long nanos) {
+        buckets[bucketIndex(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Record the time since startNanos (a value from System.nanoTime())
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() { return count.sum(); }
+
+    public long getSum() { return sum.sum(); }
+
+    /**
+     * @param quantile a value between 0 and 1 (e.g., 0.99)
+     * @return the approximate value at the quantile, in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getQuantile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+        long value = 0;
+        if (total > 0) {
+            long rank = (long)Math.ceil(quantile * total);
+            long cumulative = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                cumulative += snapshot[i];
+                if (cumulative >= rank && snapshot[i] > 0) {
+                    value = bucketValue(i);
+                    break;
+                }
+            }
+        }
+        return value;
+    }
+}
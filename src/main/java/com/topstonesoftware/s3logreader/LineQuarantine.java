@@ -0,0 +1,221 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Collect the log lines that cannot be converted to ORC rows, with the S3 key of their log file and the
+ *     reason, and append them to a quarantine file for the day.
+ * </p>
+ * <p>
+ *     A bad log file (or a change in the S3 log format) can produce millions of lines that do not parse. Logging
+ *     an error for each line floods the log and slows the BatchToOrc thread, without saying which lines failed.
+ *     Instead, add() counts the line and offers it to a bounded queue. It does not block or log. A writer thread
+ *     takes the lines from the queue and appends them to the quarantine file, one line per log line:
+ * </p>
+ * <pre>
+ *     [log file key] TAB [reason] TAB [log line]
+ * </pre>
+ * <p>
+ *     If the queue is full the line is counted as dropped. The writer thread logs a summary of the counts at most
+ *     once every SUMMARY_INTERVAL_MS, and once more when the quarantine is closed. If there is no quarantine file
+ *     the lines are only counted: no writer thread is started and the summary is only logged by close().
+ * </p>
+ * <p>
+ *     The file is opened in append mode when the first line is quarantined, so a day that is converted in several
+ *     batches (see LogFollower) has one quarantine file. A LineQuarantine may be shared by several BatchToOrc
+ *     threads.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class LineQuarantine implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LineQuarantine.class);
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final long SUMMARY_INTERVAL_MS = 30 * 1000L;
+    private static final long POLL_MS = 1000;
+    private static final QuarantinedLine END_OF_LINES = new QuarantinedLine(null, null, null);
+    private final String name;
+    private final File file;
+    private final ArrayBlockingQueue<QuarantinedLine> lineQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder[] reasonCounts = new LongAdder[Reason.values().length];
+    private final LongAdder dropped = new LongAdder();
+    // optional: null if there is no quarantine file
+    private final Thread writerThread;
+    private long lastSummaryTotal = 0;
+
+    /**
+     * Why a log line was not converted to an ORC row
+     */
+    public enum Reason {
+        // the line does not match the S3 log line regular expression
+        NO_MATCH,
+        // the request time could not be parsed
+        BAD_DATE,
+        // the HTTP status or the total time is not a number
+        BAD_NUMBER
+    }
+
+    private record QuarantinedLine(String key, Reason reason, String line) {}
+
+    /**
+     * @param name the name that is used in the summary log messages (e.g., example.com/2021-06-17)
+     * @param file the quarantine file, or null if the quarantined lines are only counted
+     */
+    public LineQuarantine(String name, File file) {
+        this.name = name;
+        this.file = file;
+        for (int i = 0; i < reasonCounts.length; i++) {
+            reasonCounts[i] = new LongAdder();
+        }
+        if (file != null) {
+            writerThread = new Thread(this::writeLines, "quarantine-" + name);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            writerThread = null;
+        }
+    }
+
+    /**
+     * @return the quarantine file [quarantineDir]/[domainName]/[batchDate].txt
+     */
+    public static File quarantineFile(String quarantineDir, String domainName, String batchDate) {
+        return new File(new File(quarantineDir, domainName), batchDate + ".txt");
+    }
+
+    /**
+     * Quarantine a log line. This is called on the BatchToOrc threads and does not block.
+     */
+    public void add(String key, Reason reason, String line) {
+        reasonCounts[reason.ordinal()].increment();
+        if (file != null && ! lineQueue.offer(new QuarantinedLine(key, reason, line))) {
+            dropped.increment();
+        }
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (LongAdder count : reasonCounts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public long getDropped() { return dropped.sum(); }
+
+    private String summary() {
+        StringBuilder counts = new StringBuilder();
+        for (Reason reason : Reason.values()) {
+            if (counts.length() > 0) {
+                counts.append(' ');
+            }
+            counts.append(reason.name().toLowerCase(Locale.ROOT)).append('=').append(reasonCounts[reason.ordinal()].sum());
+        }
+        return counts.toString();
+    }
+
+    /**
+     * Log the counts if lines have been quarantined since the last summary
+     */
+    private void logSummary() {
+        long total = getTotal();
+        if (total != lastSummaryTotal) {
+            lastSummaryTotal = total;
+            logger.warn("quarantine {}: {} lines ({}), {} not written, file: {}", name, total, summary(), dropped.sum(),
+                    file != null ? file.getPath() : "none");
+        }
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && ! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("could not create the directory " + dir);
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The writer thread: append the queued lines to the quarantine file until close() is called.
+     */
+    private void writeLines() {
+        BufferedWriter writer = null;
+        boolean writeFailed = false;
+        long nextSummary = System.currentTimeMillis() + SUMMARY_INTERVAL_MS;
+        try {
+            QuarantinedLine quarantined;
+            while ((quarantined = lineQueue.poll(POLL_MS, TimeUnit.MILLISECONDS)) != END_OF_LINES) {
+                if (quarantined != null) {
+                    if (writeFailed) {
+                        dropped.increment();
+                    } else {
+                        try {
+                            if (writer == null) {
+                                writer = openWriter();
+                            }
+                            writer.write(quarantined.key());
+                            writer.write('\t');
+                            writer.write(quarantined.reason().name());
+                            writer.write('\t');
+                            writer.write(quarantined.line());
+                            writer.newLine();
+                        } catch (IOException e) {
+                            logger.error("quarantine {}: {}: {}", name, file, e.getLocalizedMessage());
+                            writeFailed = true;
+                            dropped.increment();
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSummary) {
+                    logSummary();
+                    nextSummary = now + SUMMARY_INTERVAL_MS;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.error("quarantine {}: {}: {}", name, file, e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the remaining quarantined lines, close the file and log the final counts.
+     */
+    @Override
+    public void close() {
+        if (writerThread != null) {
+            try {
+                lineQueue.put(END_OF_LINES);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logSummary();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.util.List;
+
+/**
+ * <p>
+ *     A group of log lines from one S3 log file, as they are passed from the S3LogReader threads to a
+ *     BatchToOrc thread.
+ * </p>
+ * <p>
+ *     The lines of a log file are queued in chunks of up to S3LogReader.CHUNK_LINES lines rather than one
+ *     at a time. This reduces the locking on the shared LinkedBlockingQueue and it keeps the source key with the
+ *     lines, so that a line that cannot be parsed can be quarantined with its key (see LineQuarantine).
+ * </p>
+ *
+ * @param key the S3 key of the log file
+ * @param lines the non-blank lines, in log file order
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public record LogChunk(String key, List<String> lines) {}
@@ -33,6 +33,17 @@ public class LogFileBatcher {
         listDir = new S3DirectoryList(s3Client, s3Bucket, prefix );
     }
 
+    /**
+     * Find the date in a log file path
+     *
+     * @param filePath the log file path. For example, topstonesoftware_logs2021-06-17-22-12-00-800040BE6C721092
+     * @return a Matcher positioned at the date (2021-06-17) or null if the path does not contain a date.
+     */
+    public static Matcher findDate(String filePath) {
+        Matcher matcher = pattern.matcher(filePath);
+        return matcher.find() ? matcher : null;
+    }
+
     /**
      * <p>
      * Get a set of log file paths for one day
@@ -54,7 +65,9 @@ public class LogFileBatcher {
         boolean batchDone = false;
         do {
             if (buffer.isEmpty()) {
+                long listStart = System.nanoTime();
                 buffer = listDir.listDirectory(NAMES_TO_READ);
+                PipelineMetrics.getInstance().getListingTime().recordSince(listStart);
             }
             if (! buffer.isEmpty()) {
                 for (String filePath : buffer) {
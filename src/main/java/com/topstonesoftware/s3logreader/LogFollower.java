@@ -0,0 +1,226 @@
+/*
+   This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.topstonesoftware.aws_s3.S3DirectoryList;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+
+/**
+ * <p>
+ *     Continuously convert new S3 web log files into small "delta" ORC files.
+ * </p>
+ * <p>
+ *     LogsToOrc.processLogFiles() stops when it reaches today's log files, so today's traffic cannot be queried
+ *     until the next run. The LogFollower lists the log bucket, starting after a watermark (the last log file key
+ *     that was converted), every pollIntervalSec seconds. The new log files are grouped by date and each group is
+ *     converted into a delta ORC file in the domain directory. The delta file name is the date suffix of the first
+ *     log file in the group. For example:
+ * </p>
+ * <pre>
+ *     http_logs/bearcave.com/2021-06-17-22-12-00-800040BE6C721092.orc
+ * </pre>
+ * <p>
+ *     The watermark is saved to a local state file after each micro-batch is converted. It is only saved if all of
+ *     the log files in the micro-batch were read and all of its delta ORC files were written and uploaded. If a
+ *     log file cannot be read or an ORC file cannot be written, the listing is restarted from the saved watermark
+ *     after pollIntervalSec and the whole micro-batch is converted again. If an upload fails, follow() throws a
+ *     LogReaderException without saving the watermark. If the process stops,
+ *     it resumes from the saved watermark. A micro-batch that was being converted when the process stopped is
+ *     converted again and, since the file name is derived from the watermark, the delta file is overwritten
+ *     rather than duplicated. The compact command merges the delta files into monthly files.
+ * </p>
+ * <p>
+ *     The delay from the arrival of a log file to the time it can be queried is bounded by pollIntervalSec plus
+ *     the time to convert one micro-batch (at most MAX_BATCH_KEYS log files). Between polls the thread waits
+ *     for pollIntervalSec or for stop().
+ * </p>
+ * <p>
+ *     stop() can be called from a JVM shutdown hook: it waits until the current micro-batch is finished and
+ *     follow() has returned.
+ * </p>
+ * <p>
+ *     S3 lists keys in lexical order and the log file names start with the delivery time, so new log files are
+ *     listed after the watermark. A log file that is delivered with a key that sorts before the watermark will
+ *     not be converted.
+ * </p>
+ * <p>
+ *     The LogFollower and a daily LogsToOrc.processLogFiles() run should not both be used for the same
+ *     domain, since the log lines would be written twice.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+@Builder
+public class LogFollower {
+    private static final Logger logger = LoggerFactory.getLogger(LogFollower.class);
+    private static final String ORC_SUFFIX = ".orc";
+    private static final String WATERMARK_PROPERTY = "startAfter";
+    private static final int MAX_BATCH_KEYS = 1000;
+    private static final long MILLIS_PER_SEC = 1000;
+    private static final int DEFAULT_POLL_INTERVAL_SEC = 60;
+    @NonNull
+    private final LogsToOrc logsToOrc;
+    @NonNull
+    private final String stateFile;
+    private final int pollIntervalSec;
+    // optional: the initial watermark, if there is no state file
+    private final String startAfter;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    // counted down by stop(), to end the wait between polls
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    // counted down when follow() returns
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private String loadWatermark() throws IOException {
+        String watermark = startAfter;
+        Path statePath = Paths.get(stateFile);
+        if (Files.exists(statePath)) {
+            Properties state = new Properties();
+            try (Reader reader = Files.newBufferedReader(statePath, StandardCharsets.UTF_8)) {
+                state.load(reader);
+            }
+            watermark = state.getProperty(WATERMARK_PROPERTY, watermark);
+        }
+        return watermark;
+    }
+
+    /**
+     * Write the watermark to a temporary file and rename it, so that the state file is never partially written.
+     */
+    private void saveWatermark(String watermark) throws IOException {
+        Path statePath = Paths.get(stateFile).toAbsolutePath();
+        Path tmpPath = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        Properties state = new Properties();
+        state.setProperty(WATERMARK_PROPERTY, watermark);
+        try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            state.store(writer, "s3logreader follow state for " + logsToOrc.getLogDomainName());
+        }
+        Files.move(tmpPath, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Group the log file keys by date, keeping the listing order. Keys without a date are skipped.
+     */
+    private static Map<String, List<String>> groupByDate(List<String> keys) {
+        Map<String, List<String>> dateMap = new LinkedHashMap<>();
+        for (String key : keys) {
+            Matcher matcher = LogFileBatcher.findDate(key);
+            if (matcher != null) {
+                dateMap.computeIfAbsent(matcher.group(), k -> new ArrayList<>()).add(key);
+            }
+        }
+        return dateMap;
+    }
+
+    /**
+     * @return the ORC file name for a group of log files: the date suffix of the first log file key plus ".orc"
+     */
+    static String deltaFileName(String firstKey) {
+        Matcher matcher = LogFileBatcher.findDate(firstKey);
+        return CompressedInput.stripSuffix(firstKey.substring(matcher.start())) + ORC_SUFFIX;
+    }
+
+    /**
+     * Stop following. If follow() is running, this waits until the current micro-batch is finished and
+     * follow() has returned.
+     */
+    public void stop() {
+        stopRequested.countDown();
+        if (running.getAndSet(false)) {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Follow the log bucket until stop() is called or the thread is interrupted.
+     */
+    public void follow() throws LogReaderException {
+        // stop() may have been called before follow()
+        running.set(stopRequested.getCount() > 0);
+        final long pollMillis = (pollIntervalSec > 0 ? pollIntervalSec : DEFAULT_POLL_INTERVAL_SEC) * MILLIS_PER_SEC;
+        OrcUploader uploader = null;
+        try {
+            AmazonS3 s3Client = logsToOrc.buildS3Client();
+            uploader = logsToOrc.buildUploader(s3Client);
+            String watermark = loadWatermark();
+            logger.info("follow: starting after {}", watermark);
+            S3DirectoryList listDir = new S3DirectoryList(s3Client, logsToOrc.getLogBucket(), logsToOrc.getLogPathPrefix(), watermark);
+            while (running.get()) {
+                long listStart = System.nanoTime();
+                List<String> keys = listDir.listDirectory(MAX_BATCH_KEYS);
+                PipelineMetrics.getInstance().getListingTime().recordSince(listStart);
+                boolean converted = true;
+                if (! keys.isEmpty()) {
+                    for (Map.Entry<String, List<String>> entry : groupByDate(keys).entrySet()) {
+                        List<String> dateKeys = entry.getValue();
+                        String orcFileName = deltaFileName(dateKeys.get(0));
+                        if (logsToOrc.launchProcessingThreads(s3Client, uploader, dateKeys, entry.getKey(), orcFileName)) {
+                            logger.info("follow: converted {} log files to {}", dateKeys.size(), orcFileName);
+                        } else {
+                            converted = false;
+                        }
+                    }
+                    // the watermark must not move past log files whose ORC files have not been uploaded. A failed
+                    // upload stops the follower, with the staged files kept for a manual upload
+                    if (uploader != null) {
+                        uploader.awaitUploads();
+                    }
+                    if (converted) {
+                        watermark = listDir.getStartAfter();
+                        saveWatermark(watermark);
+                    } else {
+                        logger.error("follow: the micro-batch after {} failed. It will be converted again", watermark);
+                        listDir = new S3DirectoryList(s3Client, logsToOrc.getLogBucket(), logsToOrc.getLogPathPrefix(), watermark);
+                    }
+                }
+                if ((keys.size() < MAX_BATCH_KEYS || ! converted) && running.get()) {
+                    stopRequested.await(pollMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (IOException e) {
+            throw new LogReaderException("follow: state file " + stateFile + ": " + e.getLocalizedMessage(), e);
+        } catch (InterruptedException e) {
+            logger.info("follow: interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (uploader != null) {
+                    uploader.close();
+                }
+            } finally {
+                running.set(false);
+                finished.countDown();
+            }
+        }
+    }
+}
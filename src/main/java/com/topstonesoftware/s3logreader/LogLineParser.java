@@ -61,36 +61,187 @@ import java.util.regex.Pattern;
  * LOCATION
  *   's3://awsexamplebucket1-logs/prefix/'
  * </pre>
+ * <p>
+ *     If ColumnEnrichers are passed to the constructor, their derived columns are added after the log line
+ *     columns. The schema for these rows is built by buildOrcFileSchema(enrichers).
+ * </p>
+ * <p>
+ *     The IpColumnMode selects the remote IP columns. In the BOTH and NUMERIC modes the address is parsed from
+ *     the matched region of the log line by IpAddressParser, without creating a String, into the remote_ip_v4
+ *     (bigint) or remote_ip_v6 (16 byte binary) column. In the NUMERIC mode the remote_ip String is not written
+ *     and is only taken from the line if an enricher (e.g., GeoIpEnricher) uses it.
+ * </p>
+ * <p>
+ *     The numeric IP columns are added after the log line columns and before the enricher columns, so in the
+ *     BOTH mode the log line columns keep the ordinals that they have in the STRING mode. An Athena table that
+ *     maps the ORC columns by position can then add remote_ip_v4 and remote_ip_v6 after end_point. The NUMERIC mode
+ *     drops remote_ip, which moves the columns after it, so NUMERIC files need a new table definition.
+ * </p>
  */
 public class LogLineParser {
     private static final String LOG_REGEX = "([^ ]*) ([^ ]*) \\[(.*?)\\] ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) (\"[^\"]*\"|-) (-|[0-9]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) (\"[^\"]*\"|-) ([^ ]*)(?: ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*))?.*$";
-    private final Pattern pattern = Pattern.compile(LOG_REGEX);
+    private static final Pattern pattern = Pattern.compile(LOG_REGEX);
     // [16/Apr/2021:23:15:06 +0000]
     private static final String REQUEST_DATE_FORMAT = "dd/MMM/yyyy:HH:mm:ss";
+    private static final int ROW_SIZE = 12;
+    private static final int MAX_STATUS_CODE = 599;
+    private static final Integer[] statusCodes = new Integer[MAX_STATUS_CODE + 1];
+    // The bound on the number of distinct values that are interned for each column
+    private static final int SMALL_DICTIONARY = 1024;
+    private static final int LARGE_DICTIONARY = 8192;
     private final SimpleDateFormat dateFormatter = new SimpleDateFormat(REQUEST_DATE_FORMAT);
+    private final Matcher matcher = pattern.matcher("");
+    private final EnumMap<LogFieldEnum, ColumnDictionary> dictionaries = new EnumMap<>(LogFieldEnum.class);
+    private final List<ColumnEnricher> enrichers;
+    private final IpColumnMode ipColumnMode;
+    private final boolean remoteIpField;
+    private final int rowSize;
+    // the remote IP of the last line that was parsed, for the numeric IP columns
+    private final long[] ipv6Address = new long[2];
+    private long ipv4Address = IpAddressParser.NOT_IPV4;
+    private boolean isIpv6 = false;
+
+    static {
+        for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+            statusCodes[i] = i;
+        }
+    }
+
+    public LogLineParser() {
+        this(List.of());
+    }
+
+    /**
+     * @param enrichers the ColumnEnrichers for the derived columns that are added to each row
+     */
+    public LogLineParser(List<ColumnEnricher> enrichers) {
+        this(enrichers, IpColumnMode.STRING);
+    }
+
+    /**
+     * @param enrichers the ColumnEnrichers for the derived columns that are added to each row
+     * @param ipColumnMode the remote IP columns that are written
+     */
+    public LogLineParser(List<ColumnEnricher> enrichers, IpColumnMode ipColumnMode) {
+        this.enrichers = enrichers;
+        this.ipColumnMode = ipColumnMode;
+        this.remoteIpField = ipColumnMode.writeString() ||
+                enrichers.stream().anyMatch(enricher -> enricher.usesField(LogFieldEnum.REMOTE_IP));
+        this.rowSize = numIpColumns(ipColumnMode) + ROW_SIZE - 1 + enrichers.stream().mapToInt(ColumnEnricher::numFields).sum();
+        dictionaries.put(LogFieldEnum.BUCKET_NAME, new ColumnDictionary(SMALL_DICTIONARY));
+        dictionaries.put(LogFieldEnum.OPERATION, new ColumnDictionary(SMALL_DICTIONARY));
+        dictionaries.put(LogFieldEnum.HTTP_STATUS, new ColumnDictionary(SMALL_DICTIONARY));
+        dictionaries.put(LogFieldEnum.VERSION_ID, new ColumnDictionary(SMALL_DICTIONARY));
+        dictionaries.put(LogFieldEnum.END_POINT, new ColumnDictionary(SMALL_DICTIONARY));
+        dictionaries.put(LogFieldEnum.REFERRER, new ColumnDictionary(LARGE_DICTIONARY));
+        dictionaries.put(LogFieldEnum.USER_AGENT, new ColumnDictionary(LARGE_DICTIONARY));
+    }
+
+    /**
+     * Return the value of a field from the last line that was matched. Low cardinality fields are returned
+     * as the canonical String from the column dictionary, so repeated values do not allocate a new String.
+     */
+    private String fieldValue(String line, LogFieldEnum field) {
+        String value;
+        ColumnDictionary dictionary = dictionaries.get(field);
+        if (dictionary != null) {
+            int groupNum = field.getFieldNum();
+            value = dictionary.intern(line, matcher.start(groupNum), matcher.end(groupNum));
+        } else {
+            value = matcher.group(field.getFieldNum());
+        }
+        return value;
+    }
+
+    private static int numIpColumns(IpColumnMode ipColumnMode) {
+        return (ipColumnMode.writeString() ? 1 : 0) + (ipColumnMode.writeNumeric() ? 2 : 0);
+    }
+
+    /**
+     * Parse the remote IP address in place, from the region of the line that matched the REMOTE_IP group.
+     * An address that is neither IPv4 nor IPv6 (e.g., "-") leaves both numeric columns null.
+     */
+    private void parseRemoteIp(String line) {
+        int groupNum = LogFieldEnum.REMOTE_IP.getFieldNum();
+        int start = matcher.start(groupNum);
+        int end = matcher.end(groupNum);
+        ipv4Address = IpAddressParser.parseIpv4(line, start, end);
+        isIpv6 = ipv4Address == IpAddressParser.NOT_IPV4 && IpAddressParser.parseIpv6(line, start, end, ipv6Address);
+    }
+
+    /**
+     * @return a 128 bit address as 16 big endian bytes, the remote_ip_v6 column format
+     */
+    public static byte[] ipv6Bytes(long hi, long lo) {
+        byte[] bytes = new byte[2 * Long.BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            bytes[i] = (byte)(hi >>> (56 - 8 * i));
+            bytes[Long.BYTES + i] = (byte)(lo >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
 
     protected Map<LogFieldEnum, String> parseLine(String line) {
         EnumMap<LogFieldEnum, String> fieldMap = new EnumMap<>(LogFieldEnum.class);
         if (! line.isEmpty()) {
-            Matcher matcher = pattern.matcher(line);
+            matcher.reset(line);
             if (matcher.matches()) {
-                fieldMap.put(LogFieldEnum.BUCKET_NAME, matcher.group(LogFieldEnum.BUCKET_NAME.getFieldNum()));
-                fieldMap.put(LogFieldEnum.REQUEST_DATE_TIME, matcher.group(LogFieldEnum.REQUEST_DATE_TIME.getFieldNum()));
-                fieldMap.put(LogFieldEnum.REMOTE_IP, matcher.group(LogFieldEnum.REMOTE_IP.getFieldNum()));
-                fieldMap.put(LogFieldEnum.OPERATION, matcher.group(LogFieldEnum.OPERATION.getFieldNum()));
-                fieldMap.put(LogFieldEnum.KEY, matcher.group(LogFieldEnum.KEY.getFieldNum()));
-                fieldMap.put(LogFieldEnum.REQUEST_URI, matcher.group(LogFieldEnum.REQUEST_URI.getFieldNum()));
-                fieldMap.put(LogFieldEnum.HTTP_STATUS, matcher.group(LogFieldEnum.HTTP_STATUS.getFieldNum()));
-                fieldMap.put(LogFieldEnum.TOTAL_TIME, matcher.group(LogFieldEnum.TOTAL_TIME.getFieldNum()));
-                fieldMap.put(LogFieldEnum.REFERRER, matcher.group(LogFieldEnum.REFERRER.getFieldNum()));
-                fieldMap.put(LogFieldEnum.USER_AGENT, matcher.group(LogFieldEnum.USER_AGENT.getFieldNum()));
-                fieldMap.put(LogFieldEnum.VERSION_ID, matcher.group(LogFieldEnum.VERSION_ID.getFieldNum()));
-                fieldMap.put(LogFieldEnum.END_POINT, matcher.group(LogFieldEnum.END_POINT.getFieldNum()));
+                fieldMap.put(LogFieldEnum.BUCKET_NAME, fieldValue(line, LogFieldEnum.BUCKET_NAME));
+                fieldMap.put(LogFieldEnum.REQUEST_DATE_TIME, fieldValue(line, LogFieldEnum.REQUEST_DATE_TIME));
+                if (remoteIpField) {
+                    fieldMap.put(LogFieldEnum.REMOTE_IP, fieldValue(line, LogFieldEnum.REMOTE_IP));
+                }
+                if (ipColumnMode.writeNumeric()) {
+                    parseRemoteIp(line);
+                }
+                fieldMap.put(LogFieldEnum.OPERATION, fieldValue(line, LogFieldEnum.OPERATION));
+                fieldMap.put(LogFieldEnum.KEY, fieldValue(line, LogFieldEnum.KEY));
+                fieldMap.put(LogFieldEnum.REQUEST_URI, fieldValue(line, LogFieldEnum.REQUEST_URI));
+                fieldMap.put(LogFieldEnum.HTTP_STATUS, fieldValue(line, LogFieldEnum.HTTP_STATUS));
+                fieldMap.put(LogFieldEnum.TOTAL_TIME, fieldValue(line, LogFieldEnum.TOTAL_TIME));
+                fieldMap.put(LogFieldEnum.REFERRER, fieldValue(line, LogFieldEnum.REFERRER));
+                fieldMap.put(LogFieldEnum.USER_AGENT, fieldValue(line, LogFieldEnum.USER_AGENT));
+                fieldMap.put(LogFieldEnum.VERSION_ID, fieldValue(line, LogFieldEnum.VERSION_ID));
+                fieldMap.put(LogFieldEnum.END_POINT, fieldValue(line, LogFieldEnum.END_POINT));
             }
         }
         return fieldMap;
     }
 
+    /**
+     * Convert an HTTP status string to an Integer. Integer.valueOf() only caches values up to 127, so
+     * status codes like 200 and 404 would otherwise allocate a new Integer for every line.
+     */
+    private static Integer toStatusCode(String status) {
+        int code = Integer.parseInt(status);
+        return (code >= 0 && code <= MAX_STATUS_CODE) ? statusCodes[code] : Integer.valueOf(code);
+    }
+
+    /**
+     * @return the hit and miss counts for the column dictionaries, for logging
+     */
+    public String dictionaryStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<LogFieldEnum, ColumnDictionary> entry : dictionaries.entrySet()) {
+            ColumnDictionary dictionary = entry.getValue();
+            if (stats.length() > 0) {
+                stats.append(", ");
+            }
+            stats.append(entry.getKey().getFieldName())
+                    .append(": hits=").append(dictionary.getHits())
+                    .append(" misses=").append(dictionary.getMisses());
+            if (! dictionary.isEnabled()) {
+                stats.append(" (disabled)");
+            }
+        }
+        for (ColumnEnricher enricher : enrichers) {
+            String enricherStats = enricher.stats();
+            if (! enricherStats.isEmpty()) {
+                stats.append(", ").append(enricherStats);
+            }
+        }
+        return stats.toString();
+    }
 
     /**
      * Convert a REQUEST_DATE_TIME value to a Timestamp object
@@ -122,22 +273,31 @@ public class LogLineParser {
      * @return a list of objects that can be written out as an ORC file row.
      */
     protected List<Object> buildOrcRow(Map<LogFieldEnum, String> columnMap) throws ParseException {
-        List<Object> row = new ArrayList<>();
+        List<Object> row = new ArrayList<>(rowSize);
         if (! columnMap.isEmpty()) {
             row.add(columnMap.get(LogFieldEnum.BUCKET_NAME));
             String requestDateTime = columnMap.get(LogFieldEnum.REQUEST_DATE_TIME);
             Timestamp timestamp = convertDate(requestDateTime);
             row.add(timestamp);
-            row.add(columnMap.get(LogFieldEnum.REMOTE_IP));
+            if (ipColumnMode.writeString()) {
+                row.add(columnMap.get(LogFieldEnum.REMOTE_IP));
+            }
             row.add(columnMap.get(LogFieldEnum.OPERATION));
             row.add(columnMap.get(LogFieldEnum.KEY));
             row.add(columnMap.get(LogFieldEnum.REQUEST_URI));
-            row.add(Integer.valueOf(columnMap.get(LogFieldEnum.HTTP_STATUS)));
+            row.add(toStatusCode(columnMap.get(LogFieldEnum.HTTP_STATUS)));
             row.add(Integer.valueOf(columnMap.get(LogFieldEnum.TOTAL_TIME)));
             row.add(columnMap.get(LogFieldEnum.REFERRER));
             row.add(columnMap.get(LogFieldEnum.USER_AGENT));
             row.add(columnMap.get(LogFieldEnum.VERSION_ID));
             row.add(columnMap.get(LogFieldEnum.END_POINT));
+            if (ipColumnMode.writeNumeric()) {
+                row.add(ipv4Address != IpAddressParser.NOT_IPV4 ? Long.valueOf(ipv4Address) : null);
+                row.add(isIpv6 ? ipv6Bytes(ipv6Address[0], ipv6Address[1]) : null);
+            }
+            for (ColumnEnricher enricher : enrichers) {
+                enricher.addValues(columnMap, row);
+            }
         }
         return row;
     }
@@ -161,10 +321,20 @@ public class LogLineParser {
      * @return return a schema for a processed log entry.
      */
     public static TypeDescription buildOrcFileSchema() {
+        return buildOrcFileSchema(IpColumnMode.STRING, List.of());
+    }
+
+    /**
+     * @return the log line schema, with the remote_ip column if the ipColumnMode writes it, followed by the numeric
+     * IP columns if the ipColumnMode writes them and then the derived columns of the enrichers
+     */
+    public static TypeDescription buildOrcFileSchema(IpColumnMode ipColumnMode, List<ColumnEnricher> enrichers) {
         TypeDescription schema = TypeDescription.createStruct();
         schema.addField(LogFieldEnum.BUCKET_NAME.getFieldName(), TypeDescription.createString());
         schema.addField(LogFieldEnum.REQUEST_DATE_TIME.getFieldName(), TypeDescription.createTimestamp());
-        schema.addField(LogFieldEnum.REMOTE_IP.getFieldName(), TypeDescription.createString());
+        if (ipColumnMode.writeString()) {
+            schema.addField(LogFieldEnum.REMOTE_IP.getFieldName(), TypeDescription.createString());
+        }
         schema.addField(LogFieldEnum.OPERATION.getFieldName(), TypeDescription.createString());
         schema.addField(LogFieldEnum.KEY.getFieldName(), TypeDescription.createString());
         schema.addField(LogFieldEnum.REQUEST_URI.getFieldName(), TypeDescription.createString() );
@@ -174,9 +344,24 @@ public class LogLineParser {
         schema.addField(LogFieldEnum.USER_AGENT.getFieldName(), TypeDescription.createString());
         schema.addField(LogFieldEnum.VERSION_ID.getFieldName(), TypeDescription.createString());
         schema.addField(LogFieldEnum.END_POINT.getFieldName(), TypeDescription.createString());
+        // the numeric IP columns follow the log line columns, so a BOTH file has the STRING columns at the same ordinals
+        if (ipColumnMode.writeNumeric()) {
+            schema.addField(IpColumnMode.IPV4_COLUMN, TypeDescription.createLong());
+            schema.addField(IpColumnMode.IPV6_COLUMN, TypeDescription.createBinary());
+        }
+        for (ColumnEnricher enricher : enrichers) {
+            enricher.addFields(schema);
+        }
         return schema;
     }
 
+    /**
+     * @return the log line schema followed by the derived columns of the enrichers
+     */
+    public static TypeDescription buildOrcFileSchema(List<ColumnEnricher> enrichers) {
+        return buildOrcFileSchema(IpColumnMode.STRING, enrichers);
+    }
+
     public List<Object> processLogfileLine(String line) throws ParseException {
         Map<LogFieldEnum, String> columnMap = parseLine( line );
         return buildOrcRow( columnMap);
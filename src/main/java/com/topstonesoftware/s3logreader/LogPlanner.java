@@ -0,0 +1,360 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.topstonesoftware.aws_s3.S3DirectoryList;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+
+/**
+ * <p>
+ *     Estimate the work for a conversion (a backfill) before any log files are read: the number of days,
+ *     log file objects and bytes, the S3 GET and LIST requests, and the conversion time.
+ * </p>
+ * <h4>
+ *     Listing
+ * </h4>
+ * <p>
+ *     As for LogFileBatcher, the log file keys are assumed to be a common prefix followed by a date
+ *     (e.g., logs/topstonesoftware_logs2021-06-17-22-12-00-800040BE6C721092). The first key under the log path
+ *     prefix gives the common prefix and the first date. Each day, from the first date (or fromDate) to today
+ *     (or toDate), is then listed as its own prefix ([common prefix][yyyy-MM-dd]) with an S3DirectoryList, on
+ *     numThreads threads, so a listing of years of log files takes about as long as the largest day. The object
+ *     sizes come from the listing, so no objects are read. If the first key does not have a date after a common
+ *     prefix, the whole log path prefix is listed on one thread. The keys are grouped by day with
+ *     LogFileBatcher.findDate(), as the conversion groups them.
+ * </p>
+ * <h4>
+ *     Estimates
+ * </h4>
+ * <p>
+ *     The stage rates are read from the Prometheus text metrics file that is written by an earlier conversion
+ *     (see PipelineMetrics and --metricsFile): the mean S3 GET time for one object, the log lines per byte, the
+ *     mean parse and ORC write time for one row, the mean ORC close time and the mean listing time. If there is
+ *     no metrics file, rough default rates are used. The days are converted one at a time, so the estimated
+ *     time for a day is
+ * </p>
+ * <pre>
+ *     listing + max(objects * GET time / readers, lines * row time / writers) + ORC close
+ * </pre>
+ * <p>
+ *     and the time for the conversion is the sum for the days. The row time only includes the parse and ORC
+ *     write, so the writer time is a lower bound.
+ * </p>
+ * <h4>
+ *     Recommendations
+ * </h4>
+ * <p>
+ *     The reader threads and writers are recommended for the median day (by bytes). The writers are increased,
+ *     up to the number of processors, until the writer time is no longer than the read time with the most
+ *     readers, as long as each part file has at least MIN_PART_ROWS rows. The readers are then the number that
+ *     keeps the writers busy, with at most GET_LIMIT_PER_PREFIX GET requests per second (the S3 request rate
+ *     limit for a prefix). If the days (or parts) are smaller than MIN_PART_ROWS, the daily files should be
+ *     merged into monthly files by OrcCompactor after the conversion.
+ * </p>
+ * <pre>
+ *     LogPlanner planner = LogPlanner.builder()
+ *                             .s3Client(s3Client)
+ *                             .logBucket(logBucket)
+ *                             .logPathPrefix(logPathPrefix)
+ *                             .fromDate("2021-01-01")
+ *                             .metricsFile("metrics.prom")
+ *                             .build();
+ *     LogPlanner.Plan plan = planner.plan();
+ * </pre>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+@Builder
+public class LogPlanner {
+    private static final Logger logger = LoggerFactory.getLogger(LogPlanner.class);
+    // the page size of the LogFileBatcher listing
+    private static final int NAMES_TO_READ = 1000;
+    private static final int DEFAULT_LIST_THREADS = 16;
+    // the S3LogReader threads for each day in LogsToOrc
+    private static final int DEFAULT_READERS = 32;
+    private static final int MAX_READERS = 256;
+    private static final int GET_LIMIT_PER_PREFIX = 3500;
+    static final long MIN_PART_ROWS = 1_000_000;
+    private static final String METRIC_PREFIX = "s3logreader_";
+    private static final double DEFAULT_GET_SECONDS = 0.1;
+    private static final double DEFAULT_LINES_PER_BYTE = 1.0 / 400;
+    private static final double DEFAULT_ROW_SECONDS = 20e-6;
+    private static final double DEFAULT_CLOSE_SECONDS = 5.0;
+    private static final double DEFAULT_LIST_SECONDS = 0.2;
+    @NonNull
+    private final AmazonS3 s3Client;
+    @NonNull
+    private final String logBucket;
+    @NonNull
+    private final String logPathPrefix;
+    // optional: the first day (yyyy-MM-dd)
+    private final String fromDate;
+    // optional: the last day (yyyy-MM-dd). The default is today
+    private final String toDate;
+    // optional: a Prometheus text metrics file from an earlier conversion, for the stage rates
+    private final String metricsFile;
+    // optional: the number of listing threads. The default is DEFAULT_LIST_THREADS
+    private final int numThreads;
+    // optional: the S3LogReader threads of the conversion that is estimated. The default is DEFAULT_READERS
+    private final int numReaders;
+    // optional: the writers of the conversion that is estimated. The default is 1
+    private final int numWriters;
+
+    /**
+     * The per-thread stage rates. measured is false if the default rates are used.
+     */
+    public record StageRates(double getSeconds, double linesPerByte, double rowSeconds, double closeSeconds,
+                             double listSeconds, boolean measured) {}
+
+    /**
+     * @param lines the estimated log lines
+     * @param seconds the estimated conversion time with the numReaders and numWriters of the planner
+     */
+    public record DayPlan(String date, long objects, long bytes, long lines, double seconds) {}
+
+    /**
+     * @param compact true if the daily (or part) files are small and should be compacted into monthly files
+     * @param seconds the estimated conversion time with the recommended readers and writers
+     */
+    public record Recommendation(int readers, int connections, int writers, boolean compact, double seconds) {}
+
+    /**
+     * @param getRequests the S3 GET requests of the conversion (one for each log file object)
+     * @param listRequests the S3 LIST requests of the conversion
+     * @param orcFiles the ORC files that are written with the numWriters of the planner
+     * @param seconds the estimated conversion time with the numReaders and numWriters of the planner
+     * @param planListRequests the S3 LIST requests made by the planner
+     */
+    public record Plan(List<DayPlan> days, StageRates rates, long objects, long bytes, long getRequests,
+                       long listRequests, long orcFiles, double seconds, int planListRequests,
+                       Recommendation recommendation) {}
+
+    private static class DayCount {
+        long objects = 0;
+        long bytes = 0;
+    }
+
+    private record PrefixCounts(Map<String, DayCount> days, int listRequests) {}
+
+    private int readers() { return numReaders > 0 ? numReaders : DEFAULT_READERS; }
+
+    private int writers() { return Math.max(numWriters, 1); }
+
+    private static double mean(Map<String, Double> values, String name, double defaultValue) {
+        double sum = values.getOrDefault(METRIC_PREFIX + name + "_sum", 0.0);
+        double count = values.getOrDefault(METRIC_PREFIX + name + "_count", 0.0);
+        return count > 0 ? sum / count : defaultValue;
+    }
+
+    /**
+     * Read the stage rates from the metrics file, or return the default rates if there is no metrics file.
+     * A rate that is not in the file (e.g., no objects were read) is the default rate.
+     */
+    StageRates readRates() throws LogReaderException {
+        StageRates rates;
+        if (metricsFile == null || metricsFile.isEmpty()) {
+            rates = new StageRates(DEFAULT_GET_SECONDS, DEFAULT_LINES_PER_BYTE, DEFAULT_ROW_SECONDS, DEFAULT_CLOSE_SECONDS,
+                    DEFAULT_LIST_SECONDS, false);
+        } else {
+            Map<String, Double> values = new HashMap<>();
+            try {
+                for (String line : Files.readAllLines(Paths.get(metricsFile), StandardCharsets.UTF_8)) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length == 2 && fields[0].startsWith(METRIC_PREFIX) && fields[0].indexOf('{') < 0) {
+                        values.put(fields[0], Double.parseDouble(fields[1]));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                throw new LogReaderException("LogPlanner: " + metricsFile + ": " + e.getLocalizedMessage(), e);
+            }
+            double lines = values.getOrDefault(METRIC_PREFIX + "lines_read_total", 0.0);
+            double bytes = values.getOrDefault(METRIC_PREFIX + "bytes_read_total", 0.0);
+            double rowSeconds = mean(values, "parse_seconds", -1) + mean(values, "orc_write_seconds", -1);
+            rates = new StageRates(mean(values, "s3_get_seconds", DEFAULT_GET_SECONDS),
+                    lines > 0 && bytes > 0 ? lines / bytes : DEFAULT_LINES_PER_BYTE,
+                    rowSeconds > 0 ? rowSeconds : DEFAULT_ROW_SECONDS,
+                    mean(values, "orc_close_seconds", DEFAULT_CLOSE_SECONDS),
+                    mean(values, "listing_seconds", DEFAULT_LIST_SECONDS),
+                    true);
+        }
+        return rates;
+    }
+
+    /**
+     * @return the estimated time to convert a day with the given readers and writers
+     */
+    static double daySeconds(StageRates rates, long objects, long lines, int readers, int writers) {
+        double seconds = 0;
+        if (objects > 0) {
+            double listSeconds = ((objects + NAMES_TO_READ - 1) / NAMES_TO_READ) * rates.listSeconds();
+            double readSeconds = objects * rates.getSeconds() / Math.min(readers, objects);
+            double writeSeconds = lines * rates.rowSeconds() / writers;
+            seconds = listSeconds + Math.max(readSeconds, writeSeconds) + rates.closeSeconds();
+        }
+        return seconds;
+    }
+
+    /**
+     * Recommend the readers and writers for the median day (by bytes)
+     */
+    static Recommendation recommend(StageRates rates, List<DayPlan> days, int numProcessors) {
+        int readers = 1;
+        int writers = 1;
+        boolean compact = false;
+        if (! days.isEmpty()) {
+            List<DayPlan> bySize = new ArrayList<>(days);
+            bySize.sort(Comparator.comparingLong(DayPlan::bytes));
+            DayPlan median = bySize.get(bySize.size() / 2);
+            // the GET rate of all of the readers is kept under the S3 request rate limit for a prefix
+            int maxReaders = (int)Math.max(1, Math.min(MAX_READERS, GET_LIMIT_PER_PREFIX * rates.getSeconds()));
+            maxReaders = (int)Math.min(maxReaders, median.objects());
+            double objectSeconds = median.objects() * rates.getSeconds();
+            double writeSeconds = median.lines() * rates.rowSeconds();
+            writers = (int)Math.ceil(writeSeconds / (objectSeconds / maxReaders));
+            writers = (int)Math.min(writers, median.lines() / MIN_PART_ROWS);
+            writers = Math.max(1, Math.min(writers, numProcessors));
+            double partSeconds = writeSeconds / writers;
+            readers = partSeconds > 0 ? (int)Math.ceil(objectSeconds / partSeconds) : maxReaders;
+            readers = Math.max(1, Math.min(readers, maxReaders));
+            compact = median.lines() / writers < MIN_PART_ROWS;
+        }
+        double seconds = 0;
+        for (DayPlan day : days) {
+            seconds += daySeconds(rates, day.objects(), day.lines(), readers, writers);
+        }
+        // as for the MultiDomainRunner defaults, two S3 connections for each reader thread, for the uploads
+        return new Recommendation(readers, 2 * readers, writers, compact, seconds);
+    }
+
+    private boolean inRange(String date) {
+        return (fromDate == null || date.compareTo(fromDate) >= 0) && (toDate == null || date.compareTo(toDate) <= 0);
+    }
+
+    /**
+     * List the log files under a prefix and count the objects and bytes for each day
+     */
+    private PrefixCounts listPrefix(String prefix) {
+        S3DirectoryList listDir = new S3DirectoryList(s3Client, logBucket, prefix);
+        Map<String, DayCount> dayCounts = new HashMap<>();
+        List<S3ObjectSummary> objectList;
+        do {
+            long listStart = System.nanoTime();
+            objectList = listDir.listObjects(NAMES_TO_READ);
+            PipelineMetrics.getInstance().getListingTime().recordSince(listStart);
+            for (S3ObjectSummary summary : objectList) {
+                Matcher matcher = LogFileBatcher.findDate(summary.getKey());
+                if (matcher != null && inRange(matcher.group())) {
+                    DayCount dayCount = dayCounts.computeIfAbsent(matcher.group(), k -> new DayCount());
+                    dayCount.objects++;
+                    dayCount.bytes += summary.getSize();
+                }
+            }
+        } while (objectList.size() >= NAMES_TO_READ);
+        return new PrefixCounts(dayCounts, listDir.getListRequests());
+    }
+
+    /**
+     * @return the prefixes that are listed in parallel: one for each day from the first day to the last day
+     */
+    private List<String> listPrefixes(String firstKey) {
+        List<String> prefixes = new ArrayList<>();
+        Matcher matcher = LogFileBatcher.findDate(firstKey);
+        if (matcher != null) {
+            String keyPrefix = firstKey.substring(0, matcher.start());
+            LocalDate day = LocalDate.parse(matcher.group());
+            if (fromDate != null && LocalDate.parse(fromDate).isAfter(day)) {
+                day = LocalDate.parse(fromDate);
+            }
+            LocalDate lastDay = toDate != null ? LocalDate.parse(toDate) : LocalDate.now();
+            for (; ! day.isAfter(lastDay); day = day.plusDays(1)) {
+                prefixes.add(keyPrefix + day);
+            }
+        } else {
+            logger.warn("plan: the first key {} does not have a date after a common prefix. Listing {} on one thread",
+                    firstKey, logPathPrefix);
+            prefixes.add(logPathPrefix);
+        }
+        return prefixes;
+    }
+
+    public Plan plan() throws LogReaderException {
+        StageRates rates = readRates();
+        S3DirectoryList firstList = new S3DirectoryList(s3Client, logBucket, logPathPrefix);
+        List<S3ObjectSummary> first = firstList.listObjects(1);
+        int planListRequests = firstList.getListRequests();
+        Map<String, DayCount> dayCounts = new TreeMap<>();
+        if (! first.isEmpty()) {
+            List<String> prefixes = listPrefixes(first.get(0).getKey());
+            int threads = Math.max(1, Math.min(numThreads > 0 ? numThreads : DEFAULT_LIST_THREADS, prefixes.size()));
+            ExecutorService listPool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<PrefixCounts>> listings = new ArrayList<>();
+                for (String prefix : prefixes) {
+                    listings.add(listPool.submit(() -> listPrefix(prefix)));
+                }
+                for (Future<PrefixCounts> listing : listings) {
+                    PrefixCounts counts = listing.get();
+                    planListRequests += counts.listRequests();
+                    counts.days().forEach((date, count) -> {
+                        DayCount dayCount = dayCounts.computeIfAbsent(date, k -> new DayCount());
+                        dayCount.objects += count.objects;
+                        dayCount.bytes += count.bytes;
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LogReaderException("plan: interrupted", e);
+            } catch (ExecutionException e) {
+                throw new LogReaderException("plan: listing " + logBucket + "/" + logPathPrefix + ": " +
+                        e.getCause().getLocalizedMessage(), e.getCause());
+            } finally {
+                listPool.shutdownNow();
+            }
+        }
+        List<DayPlan> days = new ArrayList<>();
+        long objects = 0;
+        long bytes = 0;
+        long listRequests = 0;
+        double seconds = 0;
+        for (Map.Entry<String, DayCount> entry : dayCounts.entrySet()) {
+            DayCount count = entry.getValue();
+            long lines = Math.round(count.bytes * rates.linesPerByte());
+            double daySeconds = daySeconds(rates, count.objects, lines, readers(), writers());
+            days.add(new DayPlan(entry.getKey(), count.objects, count.bytes, lines, daySeconds));
+            objects += count.objects;
+            bytes += count.bytes;
+            listRequests += (count.objects + NAMES_TO_READ - 1) / NAMES_TO_READ;
+            seconds += daySeconds;
+        }
+        Recommendation recommendation = recommend(rates, days, Runtime.getRuntime().availableProcessors());
+        logger.info("plan: {} days, {} objects, {} bytes, {} LIST requests", days.size(), objects, bytes, planListRequests);
+        return new Plan(days, rates, objects, bytes, objects, listRequests, (long)days.size() * writers(), seconds,
+                planListRequests, recommendation);
+    }
+}
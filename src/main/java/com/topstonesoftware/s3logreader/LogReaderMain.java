@@ -5,24 +5,142 @@ import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * <p>
  * The main program for code to convert S3 web logs to ORC files
  * </p>
  * <h4>
- *     Command line arguments:
+ *     Commands:
+ * </h4>
+ * <p>
+ *     The first argument that is not an option is the command. If no command is given, the command is convert.
+ * </p>
+ * <ul>
+ *     <li>convert [read the S3 web log files and write ORC files]</li>
+ *     <li>query [count the rows in the generated ORC files that match a set of filters (see OrcQuery)]</li>
+ *     <li>compact [merge a domain's daily ORC files into monthly ORC files (see OrcCompactor)]</li>
+ *     <li>follow [continuously convert new log files into delta ORC files (see LogFollower)]</li>
+ *     <li>plan [list the log files and estimate the objects, bytes, S3 requests and time for convert (see LogPlanner)]</li>
+ *     <li>convertKeys [convert the log file keys that follow the command into one ORC file that is built in
+ *     memory (see InMemoryConverter)]</li>
+ * </ul>
+ * <h4>
+ *     Command line arguments for convert:
  * </h4>
  * <ul>
  *     <li>--logBucket [S3 bucket name for the S3 web logs files]</li>
  *     <li>--orcBucket [S3 bucket name for the ORC files]</li>
- *     <li>--orcPathPrefix [the prefix for the S3 path. For example: http_logs </li>
+ *     <li>--orcPathPrefix [the prefix for the S3 path. For example: http_logs A relative prefix is resolved against
+ *     /user/[user name] by the S3AFileSystem. A prefix that starts with a slash, like /http_logs, is the exact key
+ *     prefix that convertKeys and S3EventHandler write.]</li>
  *     <li>--logPathPrefix [an optional path prefix for the S3 log files]</li>
  *     <li>--domainName [the name of the domain for the S3 web logs. E.g., example.com]</li>
+ *     <li>--rollup [optional: write a daily summary ORC file under [orcPathPrefix]_rollup]</li>
+ *     <li>--maxThreads [optional: the number of log reader threads for each day. The default is 32]</li>
+ *     <li>--maxConnections [optional: the number of S3 connections. The default is 64]</li>
+ *     <li>--progressSeconds [optional: the number of seconds between progress reports. The default is 60]</li>
+ *     <li>--metricsFile [optional: a file that the Prometheus text metrics are written to]</li>
+ *     <li>--metricsPort [optional: serve the Prometheus text metrics at http://host:port/metrics]</li>
+ *     <li>--stagingDir [optional: write the ORC files to this local directory and upload them, to the same key
+ *     that the S3AFileSystem would write, with parallel multipart uploads (see OrcUploader)]</li>
+ *     <li>--uaRules [optional: a user agent rule file. The agent_class, browser_family and is_bot columns are
+ *     added to the ORC files (see UserAgentClassifier)]</li>
+ *     <li>--geoIpDb [optional: a CSV IP range database. The country and asn columns are added to the ORC files
+ *     (see GeoIpEnricher)]</li>
+ *     <li>--ipColumns [optional: string, numeric or both. The remote_ip string column and/or the numeric
+ *     remote_ip_v4 and remote_ip_v6 columns (see IpColumnMode). The default is string]</li>
+ *     <li>--quarantineDir [optional: a local directory. The log lines that cannot be converted are appended to
+ *     [quarantineDir]/[domainName]/[date].txt with their log file key and the reason (see LineQuarantine)]</li>
+ *     <li>--writers [optional: write each day as this number of ORC part files, [date]-part-00000.orc ..., each
+ *     with its own writer thread. The default is one [date].orc file]</li>
  *     <li>--help [print the command line arguments]</li>
  * </ul>
  * <pre>
  *     --domainName example.com --logBucket example.logs --orcBucket ianlkaplan-logs.orc --orcPathPrefix http_logs
  * </pre>
+ * <p>
+ *     To convert the logs for many domains in one process, the domains are listed in a configuration file
+ *     (see MultiDomainRunner) instead of --logBucket, --logPathPrefix, --orcBucket, --orcPathPrefix and --domainName:
+ * </p>
+ * <ul>
+ *     <li>--config [a file that lists the domainName logBucket logPathPrefix orcBucket orcPathPrefix for each domain]</li>
+ *     <li>--maxThreads [optional: the number of log reader threads shared by all domains. The default is 32]</li>
+ *     <li>--maxConnections [optional: the number of S3 connections shared by all domains. The default is 64]</li>
+ *     <li>--maxDomains [optional: the number of domains that are converted at the same time. The default is 4]</li>
+ * </ul>
+ * <h4>
+ *     Command line arguments for follow:
+ * </h4>
+ * <ul>
+ *     <li>The arguments for convert</li>
+ *     <li>--pollSeconds [optional: the number of seconds between S3 listings. The default is 60]</li>
+ *     <li>--stateFile [optional: the local file where the watermark is saved. The default is [domainName].follow]</li>
+ *     <li>--startAfter [optional: the log file key to start after, if there is no state file]</li>
+ * </ul>
+ * <h4>
+ *     Command line arguments for convertKeys:
+ * </h4>
+ * <ul>
+ *     <li>--logBucket, --orcBucket, --orcPathPrefix and --domainName [as for convert]</li>
+ *     <li>--uaRules, --geoIpDb and --ipColumns [optional: as for convert]</li>
+ *     <li>The log file keys</li>
+ * </ul>
+ * <pre>
+ *     convertKeys --domainName example.com --logBucket example.logs --orcBucket ianlkaplan-logs.orc --orcPathPrefix http_logs 2021-06-17-22-11-26-20178924D01EF839
+ * </pre>
+ * <h4>
+ *     Command line arguments for plan:
+ * </h4>
+ * <ul>
+ *     <li>--logBucket and --logPathPrefix [as for convert]</li>
+ *     <li>--from [optional: the first day to convert (yyyy-MM-dd). The default is the first day of the log files]</li>
+ *     <li>--to [optional: the last day to convert (yyyy-MM-dd). The default is today]</li>
+ *     <li>--metricsFile [optional: the metrics file of an earlier convert, for the measured stage rates]</li>
+ *     <li>--threads [optional: the number of listing threads. The default is 16]</li>
+ *     <li>--maxThreads and --writers [optional: the reader threads and writers that the estimate is for. The
+ *     defaults are 32 and 1]</li>
+ * </ul>
+ * <pre>
+ *     plan --logBucket bearcave.logs --from 2021-01-01 --to 2021-06-30 --metricsFile metrics.prom
+ * </pre>
+ * <h4>
+ *     Command line arguments for query:
+ * </h4>
+ * <ul>
+ *     <li>--orcPath [a local directory or an s3a://bucket/path that contains the ORC files]</li>
+ *     <li>--from [optional: the start of the request time range. yyyy-MM-dd or "yyyy-MM-dd HH:mm:ss"]</li>
+ *     <li>--to [optional: the end of the request time range (inclusive)]</li>
+ *     <li>--status [optional: the HTTP status]</li>
+ *     <li>--keyPrefix [optional: a prefix for the requested key]</li>
+ *     <li>--ip [optional: the remote IP address]</li>
+ *     <li>--cidr [optional: an IPv4 or IPv6 CIDR block for the remote IP address]</li>
+ *     <li>--groupBy [optional: a column name. The matching rows are counted for each value of the column]</li>
+ *     <li>--limit [optional: the number of group by values to print. The default is 20]</li>
+ *     <li>--threads [optional: the number of reader threads. The default is the number of processors]</li>
+ * </ul>
+ * <pre>
+ *     query --orcPath s3a://ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com --status 404 --groupBy key
+ * </pre>
+ * <h4>
+ *     Command line arguments for compact:
+ * </h4>
+ * <ul>
+ *     <li>--orcBucket, --orcPathPrefix and --domainName [as for convert]</li>
+ *     <li>--month [optional: the month to compact (yyyy-MM). The default is all months before this month]</li>
+ * </ul>
+ * <pre>
+ *     compact --domainName example.com --orcBucket ianlkaplan-logs.orc --orcPathPrefix http_logs --month 2021-06
+ * </pre>
  *
  */
 @Slf4j
@@ -33,7 +151,47 @@ public class LogReaderMain {
     private static final String ORC_PATH_PREFIX_CL = "orcPathPrefix";
     private static final String LOG_PATH_PREFIX_CL = "logPathPrefix";
     private static final String DOMAIN_CL = "domainName";
+    private static final String ROLLUP_CL = "rollup";
     private static final String HELP_CL = "help";
+    private static final String ORC_PATH_CL = "orcPath";
+    private static final String FROM_CL = "from";
+    private static final String TO_CL = "to";
+    private static final String STATUS_CL = "status";
+    private static final String KEY_PREFIX_CL = "keyPrefix";
+    private static final String IP_CL = "ip";
+    private static final String GROUP_BY_CL = "groupBy";
+    private static final String LIMIT_CL = "limit";
+    private static final String THREADS_CL = "threads";
+    private static final String MONTH_CL = "month";
+    private static final String POLL_SECONDS_CL = "pollSeconds";
+    private static final String STATE_FILE_CL = "stateFile";
+    private static final String START_AFTER_CL = "startAfter";
+    private static final String STATE_FILE_SUFFIX = ".follow";
+    private static final String PROGRESS_SECONDS_CL = "progressSeconds";
+    private static final String METRICS_FILE_CL = "metricsFile";
+    private static final String METRICS_PORT_CL = "metricsPort";
+    private static final String CONFIG_CL = "config";
+    private static final String MAX_THREADS_CL = "maxThreads";
+    private static final String MAX_CONNECTIONS_CL = "maxConnections";
+    private static final String MAX_DOMAINS_CL = "maxDomains";
+    private static final String STAGING_DIR_CL = "stagingDir";
+    private static final String UA_RULES_CL = "uaRules";
+    private static final String GEO_IP_DB_CL = "geoIpDb";
+    private static final String IP_COLUMNS_CL = "ipColumns";
+    private static final String CIDR_CL = "cidr";
+    private static final String QUARANTINE_DIR_CL = "quarantineDir";
+    private static final String WRITERS_CL = "writers";
+    private static final int DEFAULT_PROGRESS_SECONDS = 60;
+    private static final int DEFAULT_POLL_SECONDS = 60;
+    private static final String CONVERT_CMD = "convert";
+    private static final String QUERY_CMD = "query";
+    private static final String COMPACT_CMD = "compact";
+    private static final String FOLLOW_CMD = "follow";
+    private static final String CONVERT_KEYS_CMD = "convertKeys";
+    private static final String PLAN_CMD = "plan";
+    private static final String COMMANDS = String.join("|", CONVERT_CMD, QUERY_CMD, COMPACT_CMD, FOLLOW_CMD, CONVERT_KEYS_CMD, PLAN_CMD);
+    private static final String DATE_ONLY_FORMAT = "yyyy-MM-dd";
+    private static final int DEFAULT_LIMIT = 20;
 
     private static Options buildOptions() {
         Options options = new Options();
@@ -41,14 +199,14 @@ public class LogReaderMain {
                 .longOpt( LOG_BUCKET_CL )
                 .hasArg()
                 .desc("The S3 bucket containing the S3 web access log files")
-                .required()
+                .required(false)
                 .build();
         options.addOption( logBucketOpt);
         Option orcBucketOpt = Option.builder()
                 .longOpt( ORC_BUCKET_CL)
                 .hasArg()
                 .desc("The S3 bucket for the ORC files that are generated from the S3 log files")
-                .required()
+                .required(false)
                 .build();
         options.addOption(orcBucketOpt);
         Option orcPathPrefix = Option.builder()
@@ -69,9 +227,16 @@ public class LogReaderMain {
                 .longOpt( DOMAIN_CL)
                 .hasArg()
                 .desc("The domain name that the web logs were collected for.")
-                .required()
+                .required(false)
                 .build();
         options.addOption(logDomainNameOpt);
+        Option rollupOpt = Option.builder()
+                .longOpt( ROLLUP_CL )
+                .hasArg(false)
+                .desc("Write a daily summary (hits, status codes, top keys and referrers, unique IPs) ORC file")
+                .required( false )
+                .build();
+        options.addOption(rollupOpt);
         Option helpOpt = Option.builder()
                 .longOpt( HELP_CL )
                 .hasArg(false)
@@ -79,12 +244,309 @@ public class LogReaderMain {
                 .required( false )
                 .build();
         options.addOption(helpOpt);
+        addQueryOptions(options);
         return options;
     }
 
+    private static void addArgOption(Options options, String name, String description) {
+        Option option = Option.builder()
+                .longOpt( name )
+                .hasArg()
+                .desc( description )
+                .required( false )
+                .build();
+        options.addOption(option);
+    }
+
+    private static void addQueryOptions(Options options) {
+        addArgOption(options, ORC_PATH_CL, "query: a local directory or s3a://bucket/path containing the ORC files");
+        addArgOption(options, FROM_CL, "query: the start of the request time range (yyyy-MM-dd or \"yyyy-MM-dd HH:mm:ss\"). plan: the first day");
+        addArgOption(options, TO_CL, "query: the end of the request time range, inclusive (yyyy-MM-dd or \"yyyy-MM-dd HH:mm:ss\"). plan: the last day");
+        addArgOption(options, STATUS_CL, "query: the HTTP status");
+        addArgOption(options, KEY_PREFIX_CL, "query: a prefix for the requested key");
+        addArgOption(options, IP_CL, "query: the remote IP address");
+        addArgOption(options, CIDR_CL, "query: an IPv4 or IPv6 CIDR block for the remote IP address (e.g., 10.1.0.0/16)");
+        addArgOption(options, GROUP_BY_CL, "query: count the matching rows for each value of this column");
+        addArgOption(options, LIMIT_CL, "query: the number of group by values to print (default " + DEFAULT_LIMIT + ")");
+        addArgOption(options, THREADS_CL, "query: the number of reader threads (default: the number of processors). plan: the number of listing threads (default 16)");
+        addArgOption(options, MONTH_CL, "compact: the month to compact, yyyy-MM (default: all months before this month)");
+        addArgOption(options, POLL_SECONDS_CL, "follow: the number of seconds between S3 listings (default " + DEFAULT_POLL_SECONDS + ")");
+        addArgOption(options, STATE_FILE_CL, "follow: the local file where the listing watermark is saved (default [domainName]" + STATE_FILE_SUFFIX + ")");
+        addArgOption(options, START_AFTER_CL, "follow: the log file key to start after when there is no state file");
+        addArgOption(options, PROGRESS_SECONDS_CL, "The number of seconds between progress reports (default " + DEFAULT_PROGRESS_SECONDS + ")");
+        addArgOption(options, METRICS_FILE_CL, "A file that the pipeline metrics are written to in the Prometheus text format. plan: the stage rates are read from this file");
+        addArgOption(options, METRICS_PORT_CL, "Serve the pipeline metrics in the Prometheus text format at http://host:port/metrics");
+        addArgOption(options, STAGING_DIR_CL, "convert, follow: stage the ORC files in this local directory and upload them to S3 with multipart uploads");
+        addArgOption(options, UA_RULES_CL, "convert, follow, convertKeys: a user agent rule file for the agent_class, browser_family and is_bot columns");
+        addArgOption(options, GEO_IP_DB_CL, "convert, follow, convertKeys: a CSV IP range database (start_ip,end_ip,country,asn) for the country and asn columns");
+        addArgOption(options, IP_COLUMNS_CL, "convert, follow, convertKeys: the remote IP columns: string (remote_ip, the default), numeric (remote_ip_v4 and remote_ip_v6) or both");
+        addArgOption(options, QUARANTINE_DIR_CL, "convert, follow: append the log lines that cannot be converted to [quarantineDir]/[domainName]/[date].txt");
+        addArgOption(options, WRITERS_CL, "convert, follow: write each day as this number of ORC part files, each with its own writer thread (default 1)");
+        addArgOption(options, CONFIG_CL, "convert: a file that lists the domainName logBucket logPathPrefix orcBucket orcPathPrefix for each domain");
+        addArgOption(options, MAX_THREADS_CL, "convert, follow, plan: the number of log reader threads for each day. convert --config: the number of log reader threads shared by all domains (default 32)");
+        addArgOption(options, MAX_CONNECTIONS_CL, "convert, follow: the number of S3 connections. convert --config: the number of S3 connections shared by all domains (default 64)");
+        addArgOption(options, MAX_DOMAINS_CL, "convert --config: the number of domains that are converted at the same time (default 4)");
+    }
+
+    private static String optionValue(CommandLine commandLine, String name) {
+        String value = "";
+        if (commandLine.hasOption(name)) {
+            value = commandLine.getOptionValue(name);
+        }
+        return value;
+    }
+
+    private static String requiredValue(CommandLine commandLine, String name) throws ParseException {
+        if (! commandLine.hasOption(name)) {
+            throw new MissingOptionException("Missing required option: " + name);
+        }
+        return commandLine.getOptionValue(name);
+    }
+
+    private static int intValue(CommandLine commandLine, String name, int defaultValue) throws ParseException {
+        int value = defaultValue;
+        if (commandLine.hasOption(name)) {
+            try {
+                value = Integer.parseInt(commandLine.getOptionValue(name));
+            } catch (NumberFormatException e) {
+                throw new ParseException("The value for " + name + " must be an integer");
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Parse a yyyy-MM-dd or yyyy-MM-dd HH:mm:ss time. A date without a time is the start of the day or,
+     * if endOfDay is true, the last millisecond of the day.
+     */
+    private static Timestamp timeValue(CommandLine commandLine, String name, boolean endOfDay) throws ParseException {
+        Timestamp time = null;
+        if (commandLine.hasOption(name)) {
+            String timeStr = commandLine.getOptionValue(name).trim();
+            try {
+                if (timeStr.length() == DATE_ONLY_FORMAT.length()) {
+                    timeStr = timeStr + (endOfDay ? " 23:59:59.999" : " 00:00:00");
+                }
+                time = Timestamp.valueOf(timeStr);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Bad time for " + name + ": " + timeStr);
+            }
+        }
+        return time;
+    }
+
+    /**
+     * @return the ColumnEnrichers that are selected by the command line options
+     */
+    private static List<ColumnEnricher> buildEnrichers(CommandLine commandLine) throws LogReaderException {
+        List<ColumnEnricher> enrichers = new ArrayList<>();
+        if (commandLine.hasOption(UA_RULES_CL)) {
+            enrichers.add(new UserAgentClassifier(commandLine.getOptionValue(UA_RULES_CL)));
+        }
+        if (commandLine.hasOption(GEO_IP_DB_CL)) {
+            enrichers.add(new GeoIpEnricher(commandLine.getOptionValue(GEO_IP_DB_CL)));
+        }
+        return enrichers;
+    }
+
+    private static IpColumnMode ipColumnMode(CommandLine commandLine) throws ParseException {
+        String mode = commandLine.getOptionValue(IP_COLUMNS_CL, IpColumnMode.STRING.name());
+        try {
+            return IpColumnMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("The value for " + IP_COLUMNS_CL + " must be string, numeric or both");
+        }
+    }
+
+    private static LogsToOrc buildLogsToOrc(CommandLine commandLine) throws ParseException, LogReaderException {
+        return LogsToOrc.builder()
+                .logBucket(requiredValue(commandLine, LOG_BUCKET_CL))
+                .logPathPrefix(optionValue(commandLine, LOG_PATH_PREFIX_CL))
+                .orcBucket(requiredValue(commandLine, ORC_BUCKET_CL))
+                .orcPathPrefix(optionValue(commandLine, ORC_PATH_PREFIX_CL))
+                .logDomainName(requiredValue(commandLine, DOMAIN_CL))
+                .rollup(commandLine.hasOption(ROLLUP_CL))
+                .numReaders(intValue(commandLine, MAX_THREADS_CL, 0))
+                .maxConnections(intValue(commandLine, MAX_CONNECTIONS_CL, 0))
+                .stagingDir(commandLine.getOptionValue(STAGING_DIR_CL))
+                .enrichers(buildEnrichers(commandLine))
+                .ipColumnMode(ipColumnMode(commandLine))
+                .quarantineDir(commandLine.getOptionValue(QUARANTINE_DIR_CL))
+                .numWriters(intValue(commandLine, WRITERS_CL, 1))
+                .build();
+    }
+
+    private static MetricsReporter buildMetricsReporter(CommandLine commandLine) throws ParseException, LogReaderException {
+        try {
+            return new MetricsReporter(intValue(commandLine, PROGRESS_SECONDS_CL, DEFAULT_PROGRESS_SECONDS),
+                    commandLine.getOptionValue(METRICS_FILE_CL),
+                    intValue(commandLine, METRICS_PORT_CL, 0));
+        } catch (IOException e) {
+            throw new LogReaderException("Could not start the metrics reporter: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static void convert(CommandLine commandLine) throws ParseException, LogReaderException {
+        if (commandLine.hasOption(CONFIG_CL)) {
+            convertDomains(commandLine);
+        } else {
+            LogsToOrc logsToOrc = buildLogsToOrc(commandLine);
+            try (MetricsReporter reporter = buildMetricsReporter(commandLine)) {
+                logsToOrc.processLogFiles();
+            }
+        }
+    }
+
+    private static void convertDomains(CommandLine commandLine) throws ParseException, LogReaderException {
+        MultiDomainRunner runner = MultiDomainRunner.builder()
+                .configFile(commandLine.getOptionValue(CONFIG_CL))
+                .rollup(commandLine.hasOption(ROLLUP_CL))
+                .maxThreads(intValue(commandLine, MAX_THREADS_CL, 0))
+                .maxConnections(intValue(commandLine, MAX_CONNECTIONS_CL, 0))
+                .maxDomains(intValue(commandLine, MAX_DOMAINS_CL, 0))
+                .stagingDir(commandLine.getOptionValue(STAGING_DIR_CL))
+                .enrichers(buildEnrichers(commandLine))
+                .ipColumnMode(ipColumnMode(commandLine))
+                .quarantineDir(commandLine.getOptionValue(QUARANTINE_DIR_CL))
+                .numWriters(intValue(commandLine, WRITERS_CL, 1))
+                .build();
+        try (MetricsReporter reporter = buildMetricsReporter(commandLine)) {
+            runner.processLogFiles();
+        }
+    }
+
+    private static void follow(CommandLine commandLine) throws ParseException, LogReaderException {
+        LogsToOrc logsToOrc = buildLogsToOrc(commandLine);
+        String stateFile = commandLine.getOptionValue(STATE_FILE_CL, requiredValue(commandLine, DOMAIN_CL) + STATE_FILE_SUFFIX);
+        LogFollower follower = LogFollower.builder()
+                .logsToOrc(logsToOrc)
+                .stateFile(stateFile)
+                .pollIntervalSec(intValue(commandLine, POLL_SECONDS_CL, DEFAULT_POLL_SECONDS))
+                .startAfter(commandLine.getOptionValue(START_AFTER_CL))
+                .build();
+        // stop() waits for the current micro-batch to finish and its watermark to be saved before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(follower::stop));
+        try (MetricsReporter reporter = buildMetricsReporter(commandLine)) {
+            follower.follow();
+        }
+    }
+
+    /**
+     * Convert the log file keys that follow the command with an InMemoryConverter. The ORC file is written
+     * to the exact key [orcPathPrefix]/[domainName]/[date suffix of the first key].orc, without a leading slash
+     */
+    private static void convertKeys(CommandLine commandLine) throws ParseException, LogReaderException {
+        List<String> commandArgs = commandLine.getArgList();
+        if (commandArgs.size() < 2) {
+            throw new ParseException(CONVERT_KEYS_CMD + ": no log file keys");
+        }
+        List<String> keys = commandArgs.subList(1, commandArgs.size());
+        String orcPathPrefix = optionValue(commandLine, ORC_PATH_PREFIX_CL);
+        String orcKey = OrcUploader.objectKey((orcPathPrefix.isEmpty() ? "" : orcPathPrefix + "/") +
+                requiredValue(commandLine, DOMAIN_CL) + "/" + InMemoryConverter.orcFileName(keys.get(0)));
+        InMemoryConverter converter = new InMemoryConverter(LogsToOrc.buildS3Client(keys.size()), buildEnrichers(commandLine),
+                ipColumnMode(commandLine));
+        InMemoryConverter.ConvertResult result = converter.convert(requiredValue(commandLine, LOG_BUCKET_CL), keys,
+                requiredValue(commandLine, ORC_BUCKET_CL), orcKey);
+        System.out.printf("%s: rows: %d, parse failures: %d, ORC bytes: %d, first row: %.1f ms, total: %.1f ms%n",
+                result.orcKey(), result.rows(), result.parseFailures(), result.orcBytes(), result.firstRowMillis(),
+                result.totalMillis());
+    }
+
+    /**
+     * @return a yyyy-MM-dd date option, or null if the option is not set
+     */
+    private static String dateValue(CommandLine commandLine, String name) throws ParseException {
+        String date = commandLine.getOptionValue(name);
+        if (date != null) {
+            try {
+                LocalDate.parse(date);
+            } catch (DateTimeParseException e) {
+                throw new ParseException("The value for " + name + " must be a date (yyyy-MM-dd)");
+            }
+        }
+        return date;
+    }
+
+    private static void plan(CommandLine commandLine) throws ParseException, LogReaderException {
+        int listThreads = intValue(commandLine, THREADS_CL, 0);
+        LogPlanner planner = LogPlanner.builder()
+                .s3Client(LogsToOrc.buildS3Client(Math.max(listThreads, 16)))
+                .logBucket(requiredValue(commandLine, LOG_BUCKET_CL))
+                .logPathPrefix(optionValue(commandLine, LOG_PATH_PREFIX_CL))
+                .fromDate(dateValue(commandLine, FROM_CL))
+                .toDate(dateValue(commandLine, TO_CL))
+                .metricsFile(commandLine.getOptionValue(METRICS_FILE_CL))
+                .numThreads(listThreads)
+                .numReaders(intValue(commandLine, MAX_THREADS_CL, 0))
+                .numWriters(intValue(commandLine, WRITERS_CL, 1))
+                .build();
+        LogPlanner.Plan plan = planner.plan();
+        System.out.printf("%-10s  %10s  %12s  %14s  %10s%n", "date", "objects", "MB", "lines (est.)", "minutes");
+        for (LogPlanner.DayPlan day : plan.days()) {
+            System.out.printf("%-10s  %10d  %12.1f  %14d  %10.1f%n", day.date(), day.objects(), day.bytes() / (1024.0 * 1024.0),
+                    day.lines(), day.seconds() / 60);
+        }
+        LogPlanner.StageRates rates = plan.rates();
+        System.out.printf("stage rates (%s): S3 GET: %.1f ms/object, %.0f bytes/line, parse + ORC write: %.1f us/row, ORC close: %.1f s%n",
+                rates.measured() ? "measured" : "defaults", rates.getSeconds() * 1000, 1 / rates.linesPerByte(),
+                rates.rowSeconds() * 1e6, rates.closeSeconds());
+        System.out.printf("days: %d, objects: %d, MB: %.1f, S3 GET requests: %d, S3 LIST requests: %d, ORC files: %d%n",
+                plan.days().size(), plan.objects(), plan.bytes() / (1024.0 * 1024.0), plan.getRequests(),
+                plan.listRequests(), plan.orcFiles());
+        System.out.printf("estimated time: %.1f minutes (%d reader threads, %d writers)%n", plan.seconds() / 60,
+                intValue(commandLine, MAX_THREADS_CL, 32), intValue(commandLine, WRITERS_CL, 1));
+        LogPlanner.Recommendation recommendation = plan.recommendation();
+        System.out.printf("recommended: --maxThreads %d --maxConnections %d --writers %d, estimated time: %.1f minutes%n",
+                recommendation.readers(), recommendation.connections(), recommendation.writers(), recommendation.seconds() / 60);
+        if (recommendation.compact()) {
+            System.out.printf("the ORC files will have fewer than %d rows: run compact after the conversion to merge them into monthly files%n",
+                    LogPlanner.MIN_PART_ROWS);
+        }
+        System.out.printf("the plan made %d S3 LIST requests%n", plan.planListRequests());
+    }
+
+    private static void query(CommandLine commandLine) throws ParseException, LogReaderException {
+        Integer status = null;
+        if (commandLine.hasOption(STATUS_CL)) {
+            status = intValue(commandLine, STATUS_CL, 0);
+        }
+        OrcQuery query = OrcQuery.builder()
+                .orcPath(requiredValue(commandLine, ORC_PATH_CL))
+                .fromTime(timeValue(commandLine, FROM_CL, false))
+                .toTime(timeValue(commandLine, TO_CL, true))
+                .status(status)
+                .keyPrefix(commandLine.getOptionValue(KEY_PREFIX_CL))
+                .remoteIp(commandLine.getOptionValue(IP_CL))
+                .cidr(commandLine.getOptionValue(CIDR_CL))
+                .groupBy(commandLine.getOptionValue(GROUP_BY_CL))
+                .numThreads(intValue(commandLine, THREADS_CL, 0))
+                .build();
+        long startTime = System.currentTimeMillis();
+        OrcQuery.QueryResult result = query.runQuery();
+        long elapsed = System.currentTimeMillis() - startTime;
+        System.out.printf("files: %d, stripes: %d, rows read: %d, matching rows: %d, elapsed: %d ms%n",
+                result.numFiles(), result.numStripes(), result.rowsRead(), result.matchingRows(), elapsed);
+        int limit = intValue(commandLine, LIMIT_CL, DEFAULT_LIMIT);
+        result.groupCounts().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(limit)
+                .forEach(entry -> System.out.printf("%12d  %s%n", entry.getValue(), entry.getKey()));
+    }
+
+    private static void compact(CommandLine commandLine) throws ParseException, LogReaderException {
+        OrcCompactor compactor = OrcCompactor.builder()
+                .orcBucket(requiredValue(commandLine, ORC_BUCKET_CL))
+                .orcPathPrefix(optionValue(commandLine, ORC_PATH_PREFIX_CL))
+                .domainName(requiredValue(commandLine, DOMAIN_CL))
+                .month(commandLine.getOptionValue(MONTH_CL))
+                .build();
+        compactor.compact();
+    }
+
     public static void help(Options cliOptions) {
         HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp( "s3logreader", cliOptions );
+        formatter.printHelp( "s3logreader [" + COMMANDS + "]", cliOptions );
     }
 
     public static void main(String[] args) {
@@ -96,35 +558,18 @@ public class LogReaderMain {
             if (commandLine.hasOption("help") ) {
                 help(cliOptions);
             } else {
-                String logBucket = "";
-                if (commandLine.hasOption(LOG_BUCKET_CL)) {
-                    logBucket = commandLine.getOptionValue( LOG_BUCKET_CL );
-                }
-                String orcBucket = "";
-                if (commandLine.hasOption(ORC_BUCKET_CL)) {
-                    orcBucket = commandLine.getOptionValue(ORC_BUCKET_CL);
-                }
-                String orcPathPrefix = "";
-                if (commandLine.hasOption(ORC_PATH_PREFIX_CL)) {
-                    orcPathPrefix = commandLine.getOptionValue(ORC_PATH_PREFIX_CL);
-                }
-                String logPathPrefix = "";
-                if (commandLine.hasOption(LOG_PATH_PREFIX_CL)) {
-                    logPathPrefix = commandLine.getOptionValue( LOG_PATH_PREFIX_CL);
-                }
-                String domain = "";
-                if (commandLine.hasOption(DOMAIN_CL)) {
-                    domain = commandLine.getOptionValue( DOMAIN_CL );
-                }
+                List<String> commandArgs = commandLine.getArgList();
+                String command = commandArgs.isEmpty() ? CONVERT_CMD : commandArgs.get(0);
                 try {
-                    LogsToOrc logsToOrc = LogsToOrc.builder()
-                            .logBucket(logBucket)
-                            .logPathPrefix(logPathPrefix)
-                            .orcBucket(orcBucket)
-                            .orcPathPrefix(orcPathPrefix)
-                            .logDomainName(domain)
-                            .build();
-                    logsToOrc.processLogFiles();
+                    switch (command) {
+                        case CONVERT_CMD -> convert(commandLine);
+                        case QUERY_CMD -> query(commandLine);
+                        case COMPACT_CMD -> compact(commandLine);
+                        case FOLLOW_CMD -> follow(commandLine);
+                        case CONVERT_KEYS_CMD -> convertKeys(commandLine);
+                        case PLAN_CMD -> plan(commandLine);
+                        default -> throw new ParseException("Unknown command: " + command);
+                    }
                 } catch (LogReaderException e) {
                     logger.error(e.getLocalizedMessage());
                 }
@@ -13,7 +13,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -42,6 +45,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  *                             .orcBucket(orcBucket)
  *                             .orcPathPrefix(orcPathPrefix)
  *                             .logDomainName(domain)
+ *                             .rollup(false)
  *                             .build();
  * </pre>
  * <h4>
@@ -56,6 +60,24 @@ import java.util.concurrent.LinkedBlockingQueue;
  *     <li>orcBucket - the S3 bucket that that the ORC files will be written to.</li>
  *     <li>orcPathPrefix - a prefix for the ORC file path. For example: http_logs</li>
  *     <li>logDomainName - the domain that was accessed to generate the logs (e.g., example.com)</li>
+ *     <li>rollup - optional. If true, a daily summary ORC file (see DailyRollup) is written along with
+ *     each log ORC file.</li>
+ *     <li>readerPool - optional. A thread pool for the S3LogReader threads that is shared by several
+ *     LogsToOrc objects. By default each batch has its own thread pool.</li>
+ *     <li>numReaders - optional. The number of S3LogReader threads for each batch.</li>
+ *     <li>maxConnections - optional. The maximum number of HTTP connections of the AmazonS3 client that is built
+ *     by processLogFiles() and LogFollower. The default is 64.</li>
+ *     <li>stagingDir - optional. A local directory where the ORC files are written before they are uploaded
+ *     to S3 (see OrcUploader). By default the ORC files are written directly to S3 through the S3AFileSystem.</li>
+ *     <li>enrichers - optional. ColumnEnrichers (e.g., a UserAgentClassifier) that add derived columns to the
+ *     ORC rows.</li>
+ *     <li>ipColumnMode - optional. The remote IP columns that are written (see IpColumnMode). The default is the
+ *     remote_ip string column.</li>
+ *     <li>quarantineDir - optional. A local directory for the quarantine files of the log lines that cannot be
+ *     converted (see LineQuarantine). By default these lines are only counted.</li>
+ *     <li>numWriters - optional. Write each day as this many ORC part files ([date]-part-00000.orc ...), each
+ *     with its own BatchToOrc writer thread, so that the ORC encoding and compression use more than one core.
+ *     The log files are assigned to the parts by key. The default is a single [date].orc file.</li>
  * </ul>
  * <h4>
  *     Keys and Region
@@ -98,40 +120,159 @@ public class LogsToOrc {
     private final String orcBucket;
     @NonNull
     private final String logDomainName;
+    // optional: compute a daily rollup summary while the ORC files are written
+    private final boolean rollup;
+    // optional: a reader thread pool that is shared with other LogsToOrc objects (see MultiDomainRunner)
+    private final ExecutorService readerPool;
+    // optional: the number of S3LogReader threads for each batch. The default is NUM_THREADS
+    private final int numReaders;
+    // optional: the maximum number of AmazonS3 client connections. The default is MAX_CONNECTIONS
+    private final int maxConnections;
+    // optional: stage the ORC files in this local directory and upload them with an OrcUploader
+    private final String stagingDir;
+    // optional: the ColumnEnrichers for the derived columns
+    private final List<ColumnEnricher> enrichers;
+    // optional: the remote IP columns. The default is IpColumnMode.STRING
+    private final IpColumnMode ipColumnMode;
+    // optional: write the lines that cannot be converted to [quarantineDir]/[logDomainName]/[date].txt
+    private final String quarantineDir;
+    // optional: write each day as this many ORC part files, each with its own writer thread. The default is one file
+    private final int numWriters;
 
-    private void launchProcessingThreads(AmazonS3 s3Client, List<String> keyList, String orcFileName) {
-        S3LogReader[] readerThreads = new S3LogReader[NUM_THREADS];
-        ExecutorService execPool = Executors.newFixedThreadPool( NUM_THREADS );
+    String getLogBucket() { return logBucket; }
+
+    String getLogPathPrefix() { return logPathPrefix; }
+
+    String getLogDomainName() { return logDomainName; }
+
+    /**
+     * @return the name of an ORC part file: 2021-06-17.orc, part 3 is 2021-06-17-part-00003.orc
+     */
+    static String partFileName(String orcFileName, int part) {
+        String baseName = orcFileName.endsWith(ORC_SUFFIX) ? orcFileName.substring(0, orcFileName.length() - ORC_SUFFIX.length()) : orcFileName;
+        return String.format("%s-part-%05d%s", baseName, part, ORC_SUFFIX);
+    }
+
+    /**
+     * Read the log files in keyList and write the log lines to the ORC file orcFileName in the domain directory.
+     * If numWriters is greater than one, the lines are written to numWriters part files, each by its own BatchToOrc
+     * thread, and the log files are assigned to the parts by the hash of their keys (see S3LogReader).
+     *
+     * @param uploader the OrcUploader for the staged ORC file, or null if the ORC file is written directly to S3
+     * @param batchDate the date of the log files (yyyy-MM-dd)
+     * @return true if all of the log files were read and all of the ORC files were written (and, with an uploader,
+     * their uploads were started)
+     */
+    boolean launchProcessingThreads(AmazonS3 s3Client, OrcUploader uploader, List<String> keyList, String batchDate, String orcFileName) {
+        final int numThreads = numReaders > 0 ? numReaders : NUM_THREADS;
+        final int numParts = Math.max(numWriters, 1);
+        S3LogReader[] readerThreads = new S3LogReader[numThreads];
+        ExecutorService execPool = readerPool != null ? readerPool : Executors.newFixedThreadPool( numThreads );
         S3KeyList syncKeyList = new S3KeyList(keyList);
-        LinkedBlockingQueue<String> logLines = new LinkedBlockingQueue<>();
-        BatchToOrc batchToOrc = new BatchToOrc(orcBucket, orcPathPrefix, logDomainName, orcFileName, logLines);
-        Thread batchToOrcThread = new Thread( batchToOrc );
-        Killer killer = new Killer(batchToOrcThread);
-        for (int i = 0; i < NUM_THREADS; i++) {
+        List<ColumnEnricher> columnEnrichers = enrichers != null ? enrichers : List.of();
+        IpColumnMode ipColumns = ipColumnMode != null ? ipColumnMode : IpColumnMode.STRING;
+        File quarantineFile = quarantineDir != null ? LineQuarantine.quarantineFile(quarantineDir, logDomainName, batchDate) : null;
+        LineQuarantine quarantine = new LineQuarantine(logDomainName + "/" + batchDate, quarantineFile);
+        List<LinkedBlockingQueue<LogChunk>> logQueues = new ArrayList<>();
+        List<DailyRollup> partRollups = new ArrayList<>();
+        List<BatchToOrc> writers = new ArrayList<>();
+        List<Thread> writerThreads = new ArrayList<>();
+        for (int part = 0; part < numParts; part++) {
+            LinkedBlockingQueue<LogChunk> logLines = new LinkedBlockingQueue<>();
+            DailyRollup dailyRollup = rollup ? new DailyRollup(batchDate, logDomainName, LogLineParser.buildOrcFileSchema(ipColumns, columnEnrichers)) : null;
+            BatchToOrc batchToOrc = BatchToOrc.builder()
+                    .orcBucket(orcBucket)
+                    .orcPathPrefix(orcPathPrefix)
+                    .domainName(logDomainName)
+                    .orcFilename(numParts > 1 ? partFileName(orcFileName, part) : orcFileName)
+                    .logLineQueue(logLines)
+                    .rollup(dailyRollup)
+                    .rollupFilename(orcFileName)
+                    .deferRollup(numParts > 1)
+                    .uploader(uploader)
+                    .enrichers(columnEnrichers)
+                    .ipColumnMode(ipColumns)
+                    .quarantine(quarantine)
+                    .build();
+            logQueues.add(logLines);
+            partRollups.add(dailyRollup);
+            writers.add(batchToOrc);
+            writerThreads.add(new Thread( batchToOrc ));
+        }
+        Killer killer = new Killer(writerThreads);
+        List<String> queueNames = new ArrayList<>();
+        for (int part = 0; part < numParts; part++) {
+            String queueName = logDomainName + "/" + orcFileName + (numParts > 1 ? "#" + part : "");
+            PipelineMetrics.getInstance().registerQueue(queueName, logQueues.get(part));
+            queueNames.add(queueName);
+        }
+        for (int i = 0; i < numThreads; i++) {
             readerThreads[i] = S3LogReader.builder()
                     .s3Client(s3Client)
                     .logBucket(logBucket)
                     .keyList(syncKeyList)
-                    .logLines(logLines)
+                    .logQueues(logQueues)
                     .killer(killer)
                     .build();
         }
-        for (int i = 0; i < NUM_THREADS; i++) {
+        for (int i = 0; i < numThreads; i++) {
             execPool.execute( readerThreads[i] );
         }
-        batchToOrcThread.start();
+        final long writeStart = System.nanoTime();
+        writerThreads.forEach(Thread::start);
+        boolean converted = false;
         try {
-            batchToOrcThread.join();
-            int killerProcessed = killer.getTotalLinesProcessed();
-            int batchToOrcProcessed = batchToOrc.getLinesProcessed();
-            if (killerProcessed != batchToOrcProcessed) {
-                logger.error("processed lines do not match: killer processed lines: {}, batchToOrc processed lines: {}",
-                        killer.getTotalLinesProcessed(), batchToOrc.getLinesProcessed());
+            for (Thread writerThread : writerThreads) {
+                writerThread.join();
+            }
+            double elapsedSec = (System.nanoTime() - writeStart) / 1e9;
+            checkLineCounts(killer, writers);
+            if (numParts > 1) {
+                long rows = writers.stream().mapToLong(BatchToOrc::getLinesProcessed).sum();
+                logger.info("launchProcessingThreads: {} rows in {} parts, {} rows/sec", rows, numParts,
+                        elapsedSec > 0 ? String.format("%.0f", rows / elapsedSec) : "n/a");
+                if (rollup && ! writers.stream().allMatch(BatchToOrc::isDataFileWritten)) {
+                    logger.error("launchProcessingThreads: {}: not all of the parts were written, so the rollup is not written", orcFileName);
+                } else if (rollup) {
+                    DailyRollup dayRollup = partRollups.get(0);
+                    for (int part = 1; part < numParts; part++) {
+                        dayRollup.merge(partRollups.get(part));
+                    }
+                    writers.get(0).writeDeferredRollup();
+                }
+            }
+            if (execPool != readerPool) {
+                execPool.shutdown();
+            }
+            boolean readersSucceeded = Arrays.stream(readerThreads).noneMatch(S3LogReader::isReadFailed);
+            boolean writersSucceeded = writers.stream().allMatch(BatchToOrc::isDataFileWritten);
+            converted = readersSucceeded && writersSucceeded;
+            if (! converted) {
+                logger.error("launchProcessingThreads: {}/{}: the conversion failed (log files read: {}, ORC files written: {})",
+                        logDomainName, orcFileName, readersSucceeded, writersSucceeded);
             }
-            execPool.shutdown();
         } catch (InterruptedException e) {
             // We really want to ignore this exception...
             logger.error("launchProcessingThreads: this InterruptedException should never have happened");
+        } finally {
+            queueNames.forEach(PipelineMetrics.getInstance()::unregisterQueue);
+            quarantine.close();
+        }
+        return converted;
+    }
+
+    /**
+     * Check the lines that were read for each part against the lines that were written or quarantined.
+     */
+    private static void checkLineCounts(Killer killer, List<BatchToOrc> writers) {
+        for (int part = 0; part < writers.size(); part++) {
+            BatchToOrc batchToOrc = writers.get(part);
+            int killerProcessed = killer.getShardLinesProcessed(part);
+            int batchToOrcProcessed = batchToOrc.getLinesProcessed() + batchToOrc.getLinesQuarantined();
+            if (killerProcessed != batchToOrcProcessed) {
+                logger.error("processed lines do not match: part {}: killer processed lines: {}, batchToOrc processed lines: {} (quarantined: {})",
+                        part, killerProcessed, batchToOrc.getLinesProcessed(), batchToOrc.getLinesQuarantined());
+            }
         }
     }
 
@@ -140,32 +281,78 @@ public class LogsToOrc {
         return dateFormatter.format(now);
     }
 
-    public void processLogFiles() throws LogReaderException {
+    AmazonS3Client buildS3Client() throws LogReaderException {
+        return buildS3Client(maxConnections > 0 ? maxConnections : MAX_CONNECTIONS);
+    }
+
+    /**
+     * Build the AmazonS3 client from the AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY and AWS_REGION environment variables.
+     *
+     * @param maxConnections the maximum number of HTTP connections used by the client
+     */
+    static AmazonS3Client buildS3Client(int maxConnections) throws LogReaderException {
         String s3Key = System.getenv(S3_KEY);
         String s3Id = System.getenv(S3_ID);
         String s3Region = System.getenv(S3_REGION);
         if (s3Id != null && s3Key != null && s3Region != null) {
-            AmazonS3Client s3Client = (AmazonS3Client)S3ClientBuilder.getS3Client(s3Id, s3Key, s3Region, MAX_CONNECTIONS);
+            AmazonS3Client s3Client = (AmazonS3Client)S3ClientBuilder.getS3Client(s3Id, s3Key, s3Region, maxConnections);
             ClientConfiguration config = s3Client.getClientConfiguration();
-            logger.info("processLogFiles: maximum AmazonS3 connections = {}", config.getMaxConnections());
-            LogFileBatcher batcher = new LogFileBatcher(s3Client, logBucket, logPathPrefix);
-            LogFileBatcher.BatchRecord batch;
-            String todayStr = getTodaysDate();
-            while (!(batch = batcher.getLogfileBatch()).batch().isEmpty()) {
-                String batchDate = batch.batchDate();
-                String orcFileKey = batchDate + ORC_SUFFIX;
-                List<String> keyList = batch.batch();
-                launchProcessingThreads(s3Client, keyList, orcFileKey);
-                if (batchDate.equals(todayStr)) {
-                    break; // don't process any more log files for "today" since there may be log files that arrive while the code is running
-                }
-            }
+            logger.info("buildS3Client: maximum AmazonS3 connections = {}", config.getMaxConnections());
+            return s3Client;
         } else {
-            final String msg = "processLogFiles: Values for one or more of the environment variables "
+            final String msg = "buildS3Client: Values for one or more of the environment variables "
                     + S3_ID + ", " + S3_KEY + ", " + S3_REGION + " not found";
             logger.error( msg );
             throw new LogReaderException( msg );
         }
     }
 
+    /**
+     * @return an OrcUploader for the staging directory, or null if the ORC files are written directly to S3
+     */
+    OrcUploader buildUploader(AmazonS3 s3Client) throws LogReaderException {
+        return stagingDir != null && ! stagingDir.isEmpty() ? new OrcUploader(s3Client, stagingDir) : null;
+    }
+
+    LogFileBatcher buildBatcher(AmazonS3 s3Client) {
+        return new LogFileBatcher(s3Client, logBucket, logPathPrefix);
+    }
+
+    /**
+     * Convert the next one-day batch of log files. If there is an uploader, this returns once the upload of the
+     * ORC file has started, so the upload overlaps the conversion of the next batch.
+     *
+     * @return true if there may be more batches to process, false if all of the log files up to and
+     * including today have been processed.
+     */
+    boolean processNextBatch(AmazonS3 s3Client, OrcUploader uploader, LogFileBatcher batcher) {
+        boolean moreBatches = false;
+        LogFileBatcher.BatchRecord batch = batcher.getLogfileBatch();
+        if (! batch.batch().isEmpty()) {
+            String batchDate = batch.batchDate();
+            String orcFileKey = batchDate + ORC_SUFFIX;
+            List<String> keyList = batch.batch();
+            launchProcessingThreads(s3Client, uploader, keyList, batchDate, orcFileKey);
+            // don't process any more log files for "today" since there may be log files that arrive while the code is running
+            moreBatches = ! batchDate.equals(getTodaysDate());
+        }
+        return moreBatches;
+    }
+
+    public void processLogFiles() throws LogReaderException {
+        AmazonS3Client s3Client = buildS3Client();
+        LogFileBatcher batcher = buildBatcher(s3Client);
+        OrcUploader uploader = buildUploader(s3Client);
+        try {
+            boolean moreBatches;
+            do {
+                moreBatches = processNextBatch(s3Client, uploader, batcher);
+            } while (moreBatches);
+        } finally {
+            if (uploader != null) {
+                uploader.close();
+            }
+        }
+    }
+
 }
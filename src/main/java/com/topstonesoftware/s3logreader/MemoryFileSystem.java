@@ -0,0 +1,139 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *     A minimal, write-once, in-memory Hadoop FileSystem for building an ORC file in memory.
+ * </p>
+ * <p>
+ *     The ORC Writer writes through a Hadoop FileSystem. Creating this FileSystem directly avoids the S3AFileSystem
+ *     initialization and the FileSystem service loader and cache, which dominate the startup time of a short lived
+ *     process. The FileSystem is not registered with Hadoop and supports only create(), open() and delete().
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class MemoryFileSystem extends FileSystem {
+    private static final URI MEMORY_URI = URI.create("memory:///");
+    private final Map<Path, FileBuffer> files = new HashMap<>();
+    private Path workingDirectory = new Path("/");
+
+    /**
+     * A ByteArrayOutputStream whose contents can be read without copying the buffer
+     */
+    public static class FileBuffer extends ByteArrayOutputStream {
+        FileBuffer() {
+            super(64 * 1024);
+        }
+
+        public InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * @param config the configuration that is used by the FileSystem base class (e.g., for the umask)
+     */
+    public MemoryFileSystem(Configuration config) {
+        setConf(config);
+    }
+
+    private Path absolute(Path path) {
+        return path.isAbsolute() ? path : new Path(workingDirectory, path);
+    }
+
+    /**
+     * @return the contents of the file at path
+     */
+    public synchronized FileBuffer getFile(Path path) throws FileNotFoundException {
+        FileBuffer file = files.get(absolute(path));
+        if (file == null) {
+            throw new FileNotFoundException(path.toString());
+        }
+        return file;
+    }
+
+    @Override
+    public URI getUri() {
+        return MEMORY_URI;
+    }
+
+    @Override
+    public synchronized FSDataInputStream open(Path path, int bufferSize) throws IOException {
+        return new FSDataInputStream(getFile(path).toInputStream());
+    }
+
+    @Override
+    public synchronized FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite, int bufferSize,
+                                                  short replication, long blockSize, Progressable progress) throws IOException {
+        Path filePath = absolute(path);
+        if (! overwrite && files.containsKey(filePath)) {
+            throw new IOException("create: " + path + " exists");
+        }
+        FileBuffer file = new FileBuffer();
+        files.put(filePath, file);
+        return new FSDataOutputStream(file, null);
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress) throws IOException {
+        throw new IOException("append is not supported by the MemoryFileSystem");
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        throw new IOException("rename is not supported by the MemoryFileSystem");
+    }
+
+    @Override
+    public synchronized boolean delete(Path path, boolean recursive) {
+        return files.remove(absolute(path)) != null;
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path path) throws IOException {
+        throw new IOException("listStatus is not supported by the MemoryFileSystem");
+    }
+
+    @Override
+    public void setWorkingDirectory(Path newDir) {
+        workingDirectory = absolute(newDir);
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    @Override
+    public boolean mkdirs(Path path, FsPermission permission) {
+        return true;
+    }
+
+    @Override
+    public synchronized FileStatus getFileStatus(Path path) throws IOException {
+        FileBuffer file = getFile(path);
+        return new FileStatus(file.size(), false, 1, file.size(), 0, absolute(path));
+    }
+}
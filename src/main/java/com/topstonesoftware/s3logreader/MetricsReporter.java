@@ -0,0 +1,107 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Periodically report the PipelineMetrics.
+ * </p>
+ * <ul>
+ *     <li>A progress summary is logged every intervalSec seconds.</li>
+ *     <li>If a metrics file is given, the metrics are written to the file in the Prometheus text format
+ *     every intervalSec seconds (for the node_exporter textfile collector).</li>
+ *     <li>If a port is given, the metrics are served in the Prometheus text format at http://host:port/metrics</li>
+ * </ul>
+ * <p>
+ *     The reporter runs on a single daemon thread. close() stops the reporter and writes a final report.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class MetricsReporter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+    private static final String METRICS_CONTEXT = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+    private final ScheduledExecutorService scheduler;
+    private final String metricsFile;
+    private final HttpServer httpServer;
+
+    /**
+     * @param intervalSec the number of seconds between reports
+     * @param metricsFile a file for the Prometheus text metrics, or null
+     * @param port the port for the Prometheus HTTP endpoint, or 0 for no endpoint
+     */
+    public MetricsReporter(int intervalSec, String metricsFile, int port) throws IOException {
+        this.metricsFile = metricsFile;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, intervalSec, intervalSec, TimeUnit.SECONDS);
+        if (port > 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+            httpServer.createContext(METRICS_CONTEXT, exchange -> {
+                byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream ostream = exchange.getResponseBody()) {
+                    ostream.write(body);
+                }
+            });
+            httpServer.setExecutor(scheduler);
+            httpServer.start();
+            logger.info("MetricsReporter: serving metrics at http://localhost:{}{}", port, METRICS_CONTEXT);
+        } else {
+            httpServer = null;
+        }
+    }
+
+    private void writeMetricsFile() {
+        try {
+            Path path = Paths.get(metricsFile).toAbsolutePath();
+            Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(tmpPath, metrics.toPrometheusText(), StandardCharsets.UTF_8);
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("writeMetricsFile: {}: {}", metricsFile, e.getLocalizedMessage());
+        }
+    }
+
+    private void report() {
+        logger.info("progress: {}", metrics.progressSummary());
+        if (metricsFile != null) {
+            writeMetricsFile();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        scheduler.shutdownNow();
+        report();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+     This software is licensed under the Apache 2 software license.
+ */
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Convert the S3 web logs for many domains in a single JVM.
+ * </p>
+ * <p>
+ *     Running one LogsToOrc process per domain gives each process its own thread pool and its own S3
+ *     connection pool, and together they can oversubscribe the host and S3. The MultiDomainRunner reads a
+ *     configuration file that lists the domains and shares one AmazonS3 client (with maxConnections
+ *     connections) and one S3LogReader thread pool (with maxThreads threads) between all of the domains.
+ * </p>
+ * <h4>
+ *     Scheduling
+ * </h4>
+ * <p>
+ *     At most maxDomains one-day batches are converted at the same time, and each batch gets
+ *     maxThreads / maxDomains reader threads. The domains are scheduled round-robin: when a domain's batch is
+ *     finished, the domain goes to the back of the queue. A domain with a long backfill converts one day
+ *     at a time, so a small domain is not starved waiting for it.
+ * </p>
+ * <h4>
+ *     Configuration file
+ * </h4>
+ * <p>
+ *     Each line lists a domain, its log bucket and log path prefix, and the ORC bucket and ORC path prefix.
+ *     An empty prefix is written as "-". Blank lines and lines that start with # are ignored.
+ * </p>
+ * <p>
+ *     If stagingDir is set, the ORC files for all of the domains are staged locally and uploaded by one
+ *     OrcUploader, so the uploads share the AmazonS3 client as well.
+ * </p>
+ * <pre>
+ *     # domainName          logBucket                  logPathPrefix  orcBucket            orcPathPrefix
+ *     bearcave.com          bearcave.logs              -              ianlkaplan-logs.orc  http_logs
+ *     topstonesoftware.com  topstonesoftware.logs      logs/          ianlkaplan-logs.orc  http_logs
+ * </pre>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+@Builder
+public class MultiDomainRunner {
+    private static final Logger logger = LoggerFactory.getLogger(MultiDomainRunner.class);
+    private static final String COMMENT = "#";
+    private static final String EMPTY_FIELD = "-";
+    private static final int NUM_FIELDS = 5;
+    private static final int DEFAULT_MAX_THREADS = 32;
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+    private static final int DEFAULT_MAX_DOMAINS = 4;
+    @NonNull
+    private final String configFile;
+    // optional: write a daily rollup summary for each domain
+    private final boolean rollup;
+    // optional: the number of S3LogReader threads shared by all domains
+    private final int maxThreads;
+    // optional: the number of S3 HTTP connections shared by all domains
+    private final int maxConnections;
+    // optional: the number of domains that are converted at the same time
+    private final int maxDomains;
+    // optional: stage the ORC files in this local directory and upload them with a shared OrcUploader
+    private final String stagingDir;
+    // optional: the ColumnEnrichers for the derived columns, shared by all of the domains
+    private final List<ColumnEnricher> enrichers;
+    // optional: the remote IP columns for all of the domains
+    private final IpColumnMode ipColumnMode;
+    // optional: the local directory for the quarantine files of all of the domains
+    private final String quarantineDir;
+    // optional: the number of ORC part files (and writer threads) for each day of each domain
+    private final int numWriters;
+
+    /**
+     * The state of one domain: its LogsToOrc object and its position in the log bucket listing.
+     */
+    private record DomainTask(LogsToOrc logsToOrc, LogFileBatcher batcher) {}
+
+    private static String fieldValue(String field) {
+        return field.equals(EMPTY_FIELD) ? "" : field;
+    }
+
+    private List<LogsToOrc> readConfig(ExecutorService readerPool, int readersPerBatch) throws LogReaderException {
+        List<LogsToOrc> domains = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(configFile), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNum = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != NUM_FIELDS) {
+                    throw new LogReaderException("readConfig: " + configFile + " line " + lineNum + ": expected " +
+                            NUM_FIELDS + " fields: domainName logBucket logPathPrefix orcBucket orcPathPrefix");
+                }
+                domains.add(LogsToOrc.builder()
+                        .logDomainName(fields[0])
+                        .logBucket(fields[1])
+                        .logPathPrefix(fieldValue(fields[2]))
+                        .orcBucket(fields[3])
+                        .orcPathPrefix(fieldValue(fields[4]))
+                        .rollup(rollup)
+                        .readerPool(readerPool)
+                        .numReaders(readersPerBatch)
+                        .enrichers(enrichers)
+                        .ipColumnMode(ipColumnMode)
+                        .quarantineDir(quarantineDir)
+                        .numWriters(numWriters)
+                        .build());
+            }
+        } catch (IOException e) {
+            throw new LogReaderException("readConfig: " + configFile + ": " + e.getLocalizedMessage(), e);
+        }
+        return domains;
+    }
+
+    /**
+     * Take the next domain from the round-robin queue, convert one day of its logs and, if it has more
+     * log files, put it at the back of the queue.
+     */
+    private static void runDomains(AmazonS3 s3Client, OrcUploader uploader, LinkedBlockingQueue<DomainTask> taskQueue) {
+        DomainTask task;
+        while ((task = taskQueue.poll()) != null) {
+            LogsToOrc logsToOrc = task.logsToOrc();
+            boolean moreBatches = false;
+            try {
+                moreBatches = logsToOrc.processNextBatch(s3Client, uploader, task.batcher());
+            } catch (RuntimeException e) {
+                logger.error("runDomains: {}: {}", logsToOrc.getLogDomainName(), e.getLocalizedMessage());
+            }
+            if (moreBatches) {
+                taskQueue.add(task);
+            } else {
+                logger.info("runDomains: {} is finished", logsToOrc.getLogDomainName());
+            }
+        }
+    }
+
+    public void processLogFiles() throws LogReaderException {
+        final int threads = maxThreads > 0 ? maxThreads : DEFAULT_MAX_THREADS;
+        final int connections = maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+        final int concurrentDomains = Math.min(maxDomains > 0 ? maxDomains : DEFAULT_MAX_DOMAINS, threads);
+        final int readersPerBatch = Math.max(threads / concurrentDomains, 1);
+        AmazonS3 s3Client = LogsToOrc.buildS3Client(connections);
+        ExecutorService readerPool = Executors.newFixedThreadPool(threads);
+        ExecutorService domainPool = Executors.newFixedThreadPool(concurrentDomains);
+        OrcUploader uploader = stagingDir != null && ! stagingDir.isEmpty() ? new OrcUploader(s3Client, stagingDir) : null;
+        try {
+            List<LogsToOrc> domains = readConfig(readerPool, readersPerBatch);
+            logger.info("processLogFiles: {} domains, {} concurrent domains, {} reader threads per batch, {} S3 connections",
+                    domains.size(), concurrentDomains, readersPerBatch, connections);
+            LinkedBlockingQueue<DomainTask> taskQueue = new LinkedBlockingQueue<>();
+            for (LogsToOrc logsToOrc : domains) {
+                taskQueue.add(new DomainTask(logsToOrc, logsToOrc.buildBatcher(s3Client)));
+            }
+            for (int i = 0; i < concurrentDomains; i++) {
+                domainPool.execute(() -> runDomains(s3Client, uploader, taskQueue));
+            }
+            domainPool.shutdown();
+            domainPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            logger.error("processLogFiles: interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            domainPool.shutdownNow();
+            readerPool.shutdown();
+            if (uploader != null) {
+                uploader.close();
+            }
+        }
+    }
+}
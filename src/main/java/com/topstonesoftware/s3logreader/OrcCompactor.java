@@ -0,0 +1,325 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *     Compact the day (and smaller) ORC files for a domain into one ORC file per month.
+ * </p>
+ * <p>
+ *     Athena pays a cost for every file that it opens, so a month of daily files, or the small files written
+ *     by incremental runs, is more expensive to query than one monthly file. The files in the domain
+ *     directory whose names start with a date (e.g., 2021-06-17.orc, 2021-06-17-part-00000.orc) are grouped
+ *     by month and merged into [yyyy-MM].orc. A monthly file from an earlier compaction is included in the
+ *     merge, so a month can be compacted again as new days arrive.
+ * </p>
+ * <p>
+ *     If all of the files for a month have the same schema and compression, the stripes are copied into the
+ *     monthly file without decoding them (OrcFile.mergeFiles). Otherwise, the rows are read as
+ *     VectorizedRowBatches and rewritten with the union of the columns of the files (e.g., files written with
+ *     different --ipColumns, --uaRules or --geoIpDb settings). The columns are matched by name. Files that are
+ *     missing a column have null values for that column. If a column has different types in two files, the
+ *     month is not compacted.
+ * </p>
+ * <h4>
+ *     Atomic replacement
+ * </h4>
+ * <p>
+ *     The monthly file is written to a hidden temporary file (_[yyyy-MM].orc.tmp). The row count of the
+ *     temporary file is checked against the sum of the input row counts. A hidden marker file, listing the
+ *     input files, is then written before the temporary file is renamed to [yyyy-MM].orc and the input
+ *     files are deleted. If the compaction is interrupted after the marker is written, the next compaction
+ *     finds the marker and finishes the swap. Files whose names start with "_" are ignored by Athena.
+ * </p>
+ * <pre>
+ *     OrcCompactor compactor = OrcCompactor.builder()
+ *                                 .orcBucket(orcBucket)
+ *                                 .orcPathPrefix(orcPathPrefix)
+ *                                 .domainName(domain)
+ *                                 .month("2021-06")
+ *                                 .build();
+ *     compactor.compact();
+ * </pre>
+ * <p>
+ *     If month is not set, all months before the current month are compacted.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+@Builder
+public class OrcCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(OrcCompactor.class);
+    private static final String ORC_SUFFIX = ".orc";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String MARKER_SUFFIX = ".compact";
+    private static final String HIDDEN_PREFIX = "_";
+    private static final Pattern monthFilePattern = Pattern.compile("^([0-9]{4}-[0-9]{2})(-[0-9]{2}.*)?\\.orc$");
+    private static final String MONTH_FORMAT = "yyyy-MM";
+    private final Configuration config = new Configuration();
+    @NonNull
+    private final String orcBucket;
+    @NonNull
+    private final String orcPathPrefix;
+    @NonNull
+    private final String domainName;
+    // optional: the month to compact (yyyy-MM)
+    private final String month;
+
+    private Path domainPath() {
+        return new Path(orcPathPrefix + "/" + domainName);
+    }
+
+    private Path monthPath(String yearMonth) {
+        return new Path(domainPath(), yearMonth + ORC_SUFFIX);
+    }
+
+    private Path tmpPath(String yearMonth) {
+        return new Path(domainPath(), HIDDEN_PREFIX + yearMonth + ORC_SUFFIX + TMP_SUFFIX);
+    }
+
+    private Path markerPath(String yearMonth) {
+        return new Path(domainPath(), HIDDEN_PREFIX + yearMonth + MARKER_SUFFIX);
+    }
+
+    /**
+     * @return the ORC files in the domain directory, grouped by month. The files in each group are sorted by name.
+     */
+    private Map<String, List<Path>> filesByMonth(FileSystem fileSystem) throws IOException {
+        Map<String, List<Path>> monthMap = new TreeMap<>();
+        for (FileStatus status : fileSystem.listStatus(domainPath())) {
+            if (status.isFile()) {
+                Matcher matcher = monthFilePattern.matcher(status.getPath().getName());
+                if (matcher.matches()) {
+                    monthMap.computeIfAbsent(matcher.group(1), k -> new ArrayList<>()).add(status.getPath());
+                }
+            }
+        }
+        monthMap.values().forEach(paths -> paths.sort(Path::compareTo));
+        return monthMap;
+    }
+
+    private Reader openReader(FileSystem fileSystem, Path path) throws IOException {
+        return OrcFile.createReader(path, OrcFile.readerOptions(config).filesystem(fileSystem));
+    }
+
+    /**
+     * Copy the stripes of the input files into the output file.
+     *
+     * @return true if all of the input files were merged.
+     */
+    private boolean mergeStripes(FileSystem fileSystem, Path outPath, List<Path> inputs, TypeDescription schema) throws IOException {
+        OrcFile.WriterOptions options = OrcFile.writerOptions(config)
+                .fileSystem(fileSystem)
+                .setSchema(schema)
+                .overwrite(true);
+        List<Path> merged = OrcFile.mergeFiles(outPath, options, inputs);
+        return merged != null && merged.size() == inputs.size();
+    }
+
+    /**
+     * @return a struct schema with the fields of schema, followed by the fields of fileSchema that are not in
+     * schema, or fileSchema if schema is null
+     * @throws LogReaderException if a field is in both schemas with different types
+     */
+    static TypeDescription unionSchema(TypeDescription schema, TypeDescription fileSchema, Path path) throws LogReaderException {
+        TypeDescription union = TypeDescription.createStruct();
+        if (schema != null) {
+            List<String> fieldNames = schema.getFieldNames();
+            for (int i = 0; i < fieldNames.size(); i++) {
+                union.addField(fieldNames.get(i), schema.getChildren().get(i).clone());
+            }
+        }
+        List<String> unionNames = union.getFieldNames();
+        List<String> fileNames = fileSchema.getFieldNames();
+        for (int i = 0; i < fileNames.size(); i++) {
+            String name = fileNames.get(i);
+            TypeDescription fileType = fileSchema.getChildren().get(i);
+            int unionIx = unionNames.indexOf(name);
+            if (unionIx < 0) {
+                union.addField(name, fileType.clone());
+            } else if (! union.getChildren().get(unionIx).toString().equals(fileType.toString())) {
+                throw new LogReaderException("unionSchema: the column " + name + " is " + fileType + " in " + path +
+                        " and " + union.getChildren().get(unionIx) + " in an earlier file");
+            }
+        }
+        return union;
+    }
+
+    /**
+     * Read the rows of each input file with the target schema and write them to the output file.
+     */
+    private void rewriteRows(FileSystem fileSystem, Path outPath, List<Path> inputs, TypeDescription schema) throws IOException {
+        OrcFile.WriterOptions options = OrcFile.writerOptions(config)
+                .fileSystem(fileSystem)
+                .setSchema(schema)
+                .overwrite(true);
+        try (Writer writer = OrcFile.createWriter(outPath, options)) {
+            VectorizedRowBatch batch = schema.createRowBatch();
+            for (Path input : inputs) {
+                try (Reader reader = openReader(fileSystem, input);
+                     RecordReader rows = reader.rows(reader.options().schema(schema))) {
+                    while (rows.nextBatch(batch)) {
+                        writer.addRowBatch(batch);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeMarker(FileSystem fileSystem, String yearMonth, List<Path> inputs) throws IOException {
+        try (FSDataOutputStream ostream = fileSystem.create(markerPath(yearMonth), true)) {
+            for (Path input : inputs) {
+                ostream.write((input.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private List<Path> readMarker(FileSystem fileSystem, String yearMonth) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(fileSystem.open(markerPath(yearMonth)), StandardCharsets.UTF_8))) {
+            String name;
+            while ((name = reader.readLine()) != null) {
+                if (! name.isBlank()) {
+                    inputs.add(new Path(domainPath(), name.trim()));
+                }
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Replace the input files with the verified temporary file. Each step can be repeated, so this is also
+     * used to finish a compaction that was interrupted.
+     */
+    private void swap(FileSystem fileSystem, String yearMonth, List<Path> inputs) throws IOException {
+        Path monthFile = monthPath(yearMonth);
+        Path tmpFile = tmpPath(yearMonth);
+        if (fileSystem.exists(tmpFile)) {
+            if (fileSystem.exists(monthFile)) {
+                fileSystem.delete(monthFile, false);
+            }
+            if (! fileSystem.rename(tmpFile, monthFile)) {
+                throw new IOException("swap: could not rename " + tmpFile + " to " + monthFile);
+            }
+        }
+        for (Path input : inputs) {
+            if (! input.getName().equals(monthFile.getName()) && fileSystem.exists(input)) {
+                fileSystem.delete(input, false);
+            }
+        }
+        fileSystem.delete(markerPath(yearMonth), false);
+    }
+
+    private void compactMonth(FileSystem fileSystem, String yearMonth, List<Path> inputs) throws IOException, LogReaderException {
+        long inputRows = 0;
+        TypeDescription targetSchema = null;
+        String firstSchema = null;
+        CompressionKind firstCompression = null;
+        boolean sameFormat = true;
+        // each Reader holds an S3 input stream and connection, so only one input file is open at a time
+        for (Path input : inputs) {
+            try (Reader reader = openReader(fileSystem, input)) {
+                inputRows += reader.getNumberOfRows();
+                TypeDescription fileSchema = reader.getSchema();
+                if (firstSchema == null) {
+                    firstSchema = fileSchema.toString();
+                    firstCompression = reader.getCompressionKind();
+                } else {
+                    sameFormat = sameFormat && firstSchema.equals(fileSchema.toString()) &&
+                            firstCompression == reader.getCompressionKind();
+                }
+                targetSchema = unionSchema(targetSchema, fileSchema, input);
+            }
+        }
+        Path tmpFile = tmpPath(yearMonth);
+        boolean merged = false;
+        if (sameFormat) {
+            merged = mergeStripes(fileSystem, tmpFile, inputs, targetSchema);
+            if (! merged) {
+                logger.info("compactMonth: {}: stripe merge was not possible, rewriting rows", yearMonth);
+                fileSystem.delete(tmpFile, false);
+            }
+        }
+        if (! merged) {
+            rewriteRows(fileSystem, tmpFile, inputs, targetSchema);
+        }
+        long outputRows;
+        try (Reader tmpReader = openReader(fileSystem, tmpFile)) {
+            outputRows = tmpReader.getNumberOfRows();
+        }
+        if (outputRows != inputRows) {
+            fileSystem.delete(tmpFile, false);
+            throw new LogReaderException("compactMonth: " + yearMonth + ": row count mismatch. input rows: " +
+                    inputRows + " compacted rows: " + outputRows);
+        }
+        writeMarker(fileSystem, yearMonth, inputs);
+        swap(fileSystem, yearMonth, inputs);
+        logger.info("compactMonth: {}: compacted {} files ({} rows, {}) into {}", yearMonth, inputs.size(),
+                outputRows, merged ? "stripe copy" : "rewrite", monthPath(yearMonth));
+    }
+
+    private String currentMonth() {
+        return new SimpleDateFormat(MONTH_FORMAT).format(new Date());
+    }
+
+    public void compact() throws LogReaderException {
+        try {
+            FileSystem fileSystem = FileSystemBuilder.getFileSystem("s3://" + orcBucket, config);
+            Map<String, List<Path>> monthMap = filesByMonth(fileSystem);
+            String thisMonth = currentMonth();
+            for (Map.Entry<String, List<Path>> entry : monthMap.entrySet()) {
+                String yearMonth = entry.getKey();
+                if ((month != null && ! month.equals(yearMonth)) || (month == null && yearMonth.compareTo(thisMonth) >= 0)) {
+                    continue;
+                }
+                if (fileSystem.exists(markerPath(yearMonth))) {
+                    logger.info("compact: {}: finishing an interrupted compaction", yearMonth);
+                    swap(fileSystem, yearMonth, readMarker(fileSystem, yearMonth));
+                    entry.setValue(filesByMonth(fileSystem).getOrDefault(yearMonth, List.of()));
+                }
+                List<Path> inputs = entry.getValue();
+                boolean onlyMonthFile = inputs.size() == 1 && inputs.get(0).getName().equals(monthPath(yearMonth).getName());
+                if (! inputs.isEmpty() && ! onlyMonthFile) {
+                    compactMonth(fileSystem, yearMonth, inputs);
+                }
+            }
+        } catch (IOException e) {
+            throw new LogReaderException("compact: " + e.getLocalizedMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.StripeInformation;
+import org.apache.orc.TypeDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *     Run a simple query against the log ORC files that are written by BatchToOrc. The files may be in a local
+ *     directory or on S3 (s3a://bucket/path).
+ * </p>
+ * <p>
+ *     The query counts the rows that match a set of optional filters (a request time range, an HTTP status,
+ *     a key prefix, a remote IP address and a CIDR block). The count can be grouped by one column. The filters are pushed
+ *     down to the ORC reader as a SearchArgument, so stripes and row groups whose column statistics
+ *     cannot match are skipped. Only the columns that are needed by the filters and the group by column are
+ *     read. Each stripe of each file is read, as VectorizedRowBatches, by a separate task on a thread pool.
+ * </p>
+ * <h4>
+ *     IP address filters
+ * </h4>
+ * <p>
+ *     The ORC files may have the remote_ip string column, the numeric remote_ip_v4 and remote_ip_v6 columns, or
+ *     both (see IpColumnMode). The IP column is chosen for each file. A CIDR block is checked against the numeric
+ *     column when the file has it. An IPv4 block is then pushed down as a BETWEEN range on remote_ip_v4, so stripes
+ *     and row groups outside of the block are skipped. With only the string column, the block cannot be pushed
+ *     down and the address of each row is parsed from the column bytes. ORC does not keep min/max statistics for
+ *     binary columns, so an IPv6 block is checked row by row against remote_ip_v6. A remoteIp filter is a string
+ *     equality on remote_ip or, for files without it, a single address block.
+ * </p>
+ * <p>
+ *     A group by column that is not in a file, for example remote_ip in a file that was written with
+ *     IpColumnMode.NUMERIC or an enricher column in a file that was written without the enricher, is null for
+ *     the rows of that file.
+ * </p>
+ * <pre>
+ *     OrcQuery query = OrcQuery.builder()
+ *                         .orcPath("s3a://ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com")
+ *                         .status(404)
+ *                         .groupBy("key")
+ *                         .build();
+ *     OrcQuery.QueryResult result = query.runQuery();
+ * </pre>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+@Builder
+public class OrcQuery {
+    private static final Logger logger = LoggerFactory.getLogger(OrcQuery.class);
+    private static final String ORC_SUFFIX = ".orc";
+    private static final String HOUR_FORMAT = "yyyy-MM-dd HH";
+    private static final String TIME_COLUMN = LogFieldEnum.REQUEST_DATE_TIME.getFieldName();
+    private static final String STATUS_COLUMN = LogFieldEnum.HTTP_STATUS.getFieldName();
+    private static final String KEY_COLUMN = LogFieldEnum.KEY.getFieldName();
+    private static final String IP_COLUMN = LogFieldEnum.REMOTE_IP.getFieldName();
+    private static final String NULL_GROUP = "null";
+    private static final String IPV4_COLUMN = IpColumnMode.IPV4_COLUMN;
+    private static final String IPV6_COLUMN = IpColumnMode.IPV6_COLUMN;
+    private static final int IPV6_BYTES = 16;
+    private static final int SURROGATE_START = 0xd800;
+    private static final int SURROGATE_END = 0xdfff;
+    private final Configuration readerConfig = new Configuration();
+    @NonNull
+    private final String orcPath;
+    // Each of the filters is optional. A null filter is not applied.
+    private final Timestamp fromTime;
+    private final Timestamp toTime;
+    private final Integer status;
+    private final String keyPrefix;
+    private final String remoteIp;
+    // an IPv4 or IPv6 CIDR block (e.g., 10.1.0.0/16)
+    private final String cidr;
+    private final String groupBy;
+    private final int numThreads;
+
+    /**
+     * The result of a query.
+     *
+     * @param matchingRows the number of rows that matched the filters
+     * @param rowsRead the number of rows that were read after stripes and row groups were skipped
+     * @param numFiles the number of ORC files
+     * @param numStripes the number of stripes in the ORC files
+     * @param groupCounts the matching row count for each value of the group by column (empty if there is no
+     *                    group by column)
+     */
+    public record QueryResult(long matchingRows, long rowsRead, int numFiles, int numStripes, Map<String, Long> groupCounts) {}
+
+    private record StripeSplit(Path path, Reader reader, long offset, long length) {}
+
+    private record PartialResult(long matchingRows, long rowsRead, Map<String, Long> groupCounts) {}
+
+    /**
+     * The parsed IP filters. remoteIpRange is null if remoteIp is not an address (it can then only be matched
+     * against the remote_ip string column).
+     */
+    private record IpFilters(CidrRange remoteIpRange, CidrRange cidrRange) {}
+
+    /**
+     * A CharSequence view of the bytes of an ASCII string column value, so that an address can be parsed
+     * without creating a String.
+     */
+    private static class AsciiSequence implements CharSequence {
+        private byte[] bytes;
+        private int start;
+        private int length;
+
+        void set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() { return length; }
+
+        @Override
+        public char charAt(int index) { return (char)(bytes[start + index] & 0xff); }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(bytes, start + from, to - from, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private List<Path> listOrcFiles(FileSystem fileSystem, Path root) throws IOException {
+        List<Path> files = new ArrayList<>();
+        RemoteIterator<LocatedFileStatus> fileIter = fileSystem.listFiles(root, true);
+        while (fileIter.hasNext()) {
+            Path path = fileIter.next().getPath();
+            String name = path.getName();
+            if (name.endsWith(ORC_SUFFIX) && !name.startsWith("_") && !name.startsWith(".")) {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param openReaders the Reader for the file is added to openReaders, so that it can be closed when the
+     *                    stripe tasks that share it are finished
+     */
+    private List<StripeSplit> buildSplits(FileSystem fileSystem, Path path, Queue<Reader> openReaders) throws IOException {
+        Reader reader = OrcFile.createReader(path, OrcFile.readerOptions(readerConfig).filesystem(fileSystem));
+        openReaders.add(reader);
+        List<StripeSplit> splits = new ArrayList<>();
+        for (StripeInformation stripe : reader.getStripes()) {
+            splits.add(new StripeSplit(path, reader, stripe.getOffset(), stripe.getLength()));
+        }
+        return splits;
+    }
+
+    /**
+     * @return the column that an IP filter is checked against in a file with the columns fieldNames: the
+     * numeric column for the address family if there is one, otherwise remote_ip.
+     */
+    private static String ipFilterColumn(CidrRange range, List<String> fieldNames) {
+        String column = IP_COLUMN;
+        if (range != null && range.isIpv4() && fieldNames.contains(IPV4_COLUMN)) {
+            column = IPV4_COLUMN;
+        } else if (range != null && ! range.isIpv4() && fieldNames.contains(IPV6_COLUMN)) {
+            column = IPV6_COLUMN;
+        }
+        return column;
+    }
+
+    /**
+     * ORC compares strings as UTF-8 bytes. UTF-8 preserves the order of the code points, so the smallest string
+     * that is greater than every string that starts with prefix is the prefix with its last code point
+     * incremented (a last code point of U+10FFFF is dropped and the code point before it is incremented).
+     *
+     * @return the successor of prefix, or null if there is no string greater than all of the strings that
+     * start with prefix (e.g., the empty prefix)
+     */
+    static String prefixSuccessor(String prefix) {
+        int[] codePoints = prefix.codePoints().toArray();
+        String successor = null;
+        for (int i = codePoints.length - 1; i >= 0 && successor == null; i--) {
+            if (codePoints[i] < Character.MAX_CODE_POINT) {
+                int next = codePoints[i] + 1;
+                if (next >= SURROGATE_START && next <= SURROGATE_END) {
+                    next = SURROGATE_END + 1;
+                }
+                codePoints[i] = next;
+                successor = new String(codePoints, 0, i + 1);
+            }
+        }
+        return successor;
+    }
+
+    /**
+     * Build the SearchArgument for the filters. A key prefix is pushed down as the range
+     * [prefix, prefixSuccessor(prefix)), which allows row groups to be skipped. The prefix itself is checked for each row. An IP filter is only pushed down
+     * if it is checked against the remote_ip (equality) or remote_ip_v4 column.
+     *
+     * @return the search argument or null if there are no filters
+     */
+    private SearchArgument buildSearchArgument(IpFilters ipFilters, String remoteIpColumn, String cidrColumn) {
+        SearchArgument sarg = null;
+        boolean remoteIpLeaf = remoteIp != null && ! remoteIpColumn.equals(IPV6_COLUMN);
+        boolean cidrLeaf = cidr != null && cidrColumn.equals(IPV4_COLUMN);
+        if (fromTime != null || toTime != null || status != null || keyPrefix != null || remoteIpLeaf || cidrLeaf) {
+            SearchArgument.Builder builder = SearchArgumentFactory.newBuilder().startAnd();
+            if (fromTime != null && toTime != null) {
+                builder.between(TIME_COLUMN, PredicateLeaf.Type.TIMESTAMP, fromTime, toTime);
+            } else if (fromTime != null) {
+                builder.startNot().lessThan(TIME_COLUMN, PredicateLeaf.Type.TIMESTAMP, fromTime).end();
+            } else if (toTime != null) {
+                builder.lessThanEquals(TIME_COLUMN, PredicateLeaf.Type.TIMESTAMP, toTime);
+            }
+            if (status != null) {
+                builder.equals(STATUS_COLUMN, PredicateLeaf.Type.LONG, status.longValue());
+            }
+            if (keyPrefix != null) {
+                builder.startNot().lessThan(KEY_COLUMN, PredicateLeaf.Type.STRING, keyPrefix).end();
+                String successor = prefixSuccessor(keyPrefix);
+                if (successor != null) {
+                    builder.lessThan(KEY_COLUMN, PredicateLeaf.Type.STRING, successor);
+                }
+            }
+            if (remoteIpLeaf && remoteIpColumn.equals(IP_COLUMN)) {
+                builder.equals(IP_COLUMN, PredicateLeaf.Type.STRING, remoteIp);
+            } else if (remoteIpLeaf) {
+                builder.equals(IPV4_COLUMN, PredicateLeaf.Type.LONG, ipFilters.remoteIpRange().getIpv4Start());
+            }
+            if (cidrLeaf) {
+                CidrRange range = ipFilters.cidrRange();
+                builder.between(IPV4_COLUMN, PredicateLeaf.Type.LONG, range.getIpv4Start(), range.getIpv4End());
+            }
+            sarg = builder.end().build();
+        }
+        return sarg;
+    }
+
+    private Set<String> projectedColumns(String remoteIpColumn, String cidrColumn) {
+        Set<String> columns = new LinkedHashSet<>();
+        if (fromTime != null || toTime != null) {
+            columns.add(TIME_COLUMN);
+        }
+        if (status != null) {
+            columns.add(STATUS_COLUMN);
+        }
+        if (keyPrefix != null) {
+            columns.add(KEY_COLUMN);
+        }
+        if (remoteIp != null) {
+            columns.add(remoteIpColumn);
+        }
+        if (cidr != null) {
+            columns.add(cidrColumn);
+        }
+        return columns;
+    }
+
+    private static boolean isNull(ColumnVector vector, int ix) {
+        return !vector.noNulls && vector.isNull[ix];
+    }
+
+    private static int rowIndex(ColumnVector vector, int row) {
+        return vector.isRepeating ? 0 : row;
+    }
+
+    private static boolean bytesStartWith(BytesColumnVector vector, int ix, byte[] prefix) {
+        boolean match = vector.length[ix] >= prefix.length;
+        if (match) {
+            byte[] bytes = vector.vector[ix];
+            int start = vector.start[ix];
+            for (int i = 0; i < prefix.length && match; i++) {
+                match = bytes[start + i] == prefix[i];
+            }
+        }
+        return match;
+    }
+
+    private static boolean bytesEqual(BytesColumnVector vector, int ix, byte[] value) {
+        return vector.length[ix] == value.length && bytesStartWith(vector, ix, value);
+    }
+
+    private static long ipv6Word(byte[] bytes, int offset) {
+        long word = 0;
+        for (int i = offset; i < offset + Long.BYTES; i++) {
+            word = (word << 8) | (bytes[i] & 0xff);
+        }
+        return word;
+    }
+
+    /**
+     * @return true if the IP column value of the row is in the range. The column is remote_ip_v4, remote_ip_v6
+     * or remote_ip, where the address is parsed in place from the column bytes.
+     */
+    private static boolean ipInRange(ColumnVector vector, int row, CidrRange range, AsciiSequence text, long[] ipv6Address) {
+        int ix = rowIndex(vector, row);
+        boolean match = false;
+        if (! isNull(vector, ix)) {
+            if (vector instanceof LongColumnVector) {
+                match = range.containsIpv4(((LongColumnVector) vector).vector[ix]);
+            } else {
+                BytesColumnVector bytesVec = (BytesColumnVector) vector;
+                if (bytesVec.length[ix] == IPV6_BYTES && ! range.isIpv4() && text == null) {
+                    int start = bytesVec.start[ix];
+                    match = range.containsIpv6(ipv6Word(bytesVec.vector[ix], start), ipv6Word(bytesVec.vector[ix], start + Long.BYTES));
+                } else if (text != null) {
+                    text.set(bytesVec.vector[ix], bytesVec.start[ix], bytesVec.length[ix]);
+                    match = range.contains(text, 0, text.length(), ipv6Address);
+                }
+            }
+        }
+        return match;
+    }
+
+    private PartialResult readStripe(StripeSplit split, IpFilters ipFilters) throws IOException {
+        Reader reader = split.reader();
+        TypeDescription fileSchema = reader.getSchema();
+        List<String> fieldNames = fileSchema.getFieldNames();
+        // the IP columns are chosen for each file, since files written with different IpColumnModes can be mixed
+        final String remoteIpColumn = fieldNames.contains(IP_COLUMN) ? IP_COLUMN : ipFilterColumn(ipFilters.remoteIpRange(), fieldNames);
+        final String cidrColumn = ipFilterColumn(ipFilters.cidrRange(), fieldNames);
+        Set<String> columns = projectedColumns(remoteIpColumn, cidrColumn);
+        if (groupBy != null && fieldNames.contains(groupBy)) {
+            columns.add(groupBy);
+        }
+        SearchArgument sarg = buildSearchArgument(ipFilters, remoteIpColumn, cidrColumn);
+        boolean[] include = new boolean[fileSchema.getMaximumId() + 1];
+        include[0] = true;
+        for (String column : columns) {
+            int fieldIx = fieldNames.indexOf(column);
+            if (fieldIx < 0) {
+                throw new IOException("readStripe: column " + column + " not found in " + split.path());
+            }
+            include[fileSchema.getChildren().get(fieldIx).getId()] = true;
+        }
+        Reader.Options options = reader.options().range(split.offset(), split.length()).include(include);
+        if (sarg != null) {
+            options.searchArgument(sarg, columns.toArray(new String[0]));
+        }
+        final int timeIx = fieldNames.indexOf(TIME_COLUMN);
+        final int statusIx = fieldNames.indexOf(STATUS_COLUMN);
+        final int keyIx = fieldNames.indexOf(KEY_COLUMN);
+        final int ipIx = fieldNames.indexOf(remoteIpColumn);
+        final int cidrIx = fieldNames.indexOf(cidrColumn);
+        // a numeric remoteIp column is matched as a single address range
+        final boolean ipAsRange = ! remoteIpColumn.equals(IP_COLUMN);
+        final AsciiSequence ipText = new AsciiSequence();
+        final long[] ipv6Address = new long[2];
+        final int groupIx = (groupBy != null) ? fieldNames.indexOf(groupBy) : -1;
+        final byte[] keyPrefixBytes = (keyPrefix != null) ? keyPrefix.getBytes(StandardCharsets.UTF_8) : null;
+        final byte[] ipBytes = (remoteIp != null) ? remoteIp.getBytes(StandardCharsets.UTF_8) : null;
+        final long fromMillis = (fromTime != null) ? fromTime.getTime() : Long.MIN_VALUE;
+        final long toMillis = (toTime != null) ? toTime.getTime() : Long.MAX_VALUE;
+        final SimpleDateFormat hourFormatter = new SimpleDateFormat(HOUR_FORMAT);
+        long matchingRows = 0;
+        long rowsRead = 0;
+        Map<String, Long> groupCounts = new HashMap<>();
+        VectorizedRowBatch batch = fileSchema.createRowBatch();
+        try (RecordReader rows = reader.rows(options)) {
+            while (rows.nextBatch(batch)) {
+                rowsRead += batch.size;
+                for (int r = 0; r < batch.size; r++) {
+                    if (fromTime != null || toTime != null) {
+                        TimestampColumnVector timeVec = (TimestampColumnVector) batch.cols[timeIx];
+                        int ix = rowIndex(timeVec, r);
+                        if (isNull(timeVec, ix) || timeVec.getTime(ix) < fromMillis || timeVec.getTime(ix) > toMillis) {
+                            continue;
+                        }
+                    }
+                    if (status != null) {
+                        LongColumnVector statusVec = (LongColumnVector) batch.cols[statusIx];
+                        int ix = rowIndex(statusVec, r);
+                        if (isNull(statusVec, ix) || statusVec.vector[ix] != status) {
+                            continue;
+                        }
+                    }
+                    if (keyPrefixBytes != null) {
+                        BytesColumnVector keyVec = (BytesColumnVector) batch.cols[keyIx];
+                        int ix = rowIndex(keyVec, r);
+                        if (isNull(keyVec, ix) || !bytesStartWith(keyVec, ix, keyPrefixBytes)) {
+                            continue;
+                        }
+                    }
+                    if (ipBytes != null && ipAsRange) {
+                        if (! ipInRange(batch.cols[ipIx], r, ipFilters.remoteIpRange(), null, ipv6Address)) {
+                            continue;
+                        }
+                    } else if (ipBytes != null) {
+                        BytesColumnVector ipVec = (BytesColumnVector) batch.cols[ipIx];
+                        int ix = rowIndex(ipVec, r);
+                        if (isNull(ipVec, ix) || !bytesEqual(ipVec, ix, ipBytes)) {
+                            continue;
+                        }
+                    }
+                    if (cidr != null) {
+                        AsciiSequence text = cidrColumn.equals(IP_COLUMN) ? ipText : null;
+                        if (! ipInRange(batch.cols[cidrIx], r, ipFilters.cidrRange(), text, ipv6Address)) {
+                            continue;
+                        }
+                    }
+                    matchingRows++;
+                    if (groupIx >= 0) {
+                        groupCounts.merge(groupValue(batch.cols[groupIx], groupBy, r, hourFormatter), 1L, Long::sum);
+                    } else if (groupBy != null) {
+                        groupCounts.merge(NULL_GROUP, 1L, Long::sum);
+                    }
+                }
+            }
+        }
+        return new PartialResult(matchingRows, rowsRead, groupCounts);
+    }
+
+    /**
+     * @return the value of the group by column as a String. Timestamps are grouped by hour. The numeric IP
+     * columns are formatted as addresses.
+     */
+    private static String groupValue(ColumnVector vector, String column, int row, SimpleDateFormat hourFormatter) {
+        String value = NULL_GROUP;
+        int ix = rowIndex(vector, row);
+        if (! isNull(vector, ix)) {
+            if (column.equals(IPV4_COLUMN)) {
+                value = CidrRange.ipv4ToString(((LongColumnVector) vector).vector[ix]);
+            } else if (column.equals(IPV6_COLUMN) && ((BytesColumnVector) vector).length[ix] == IPV6_BYTES) {
+                BytesColumnVector bytesVec = (BytesColumnVector) vector;
+                int start = bytesVec.start[ix];
+                value = CidrRange.ipv6ToString(ipv6Word(bytesVec.vector[ix], start), ipv6Word(bytesVec.vector[ix], start + Long.BYTES));
+            } else if (vector instanceof BytesColumnVector) {
+                BytesColumnVector bytesVec = (BytesColumnVector) vector;
+                value = new String(bytesVec.vector[ix], bytesVec.start[ix], bytesVec.length[ix], StandardCharsets.UTF_8);
+            } else if (vector instanceof LongColumnVector) {
+                value = Long.toString(((LongColumnVector) vector).vector[ix]);
+            } else if (vector instanceof TimestampColumnVector) {
+                value = hourFormatter.format(new Date(((TimestampColumnVector) vector).getTime(ix)));
+            } else {
+                StringBuilder builder = new StringBuilder();
+                vector.stringifyValue(builder, ix);
+                value = builder.toString();
+            }
+        }
+        return value;
+    }
+
+    private static <T> List<T> runAll(ExecutorService execPool, List<Callable<T>> tasks) throws LogReaderException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : execPool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LogReaderException("runQuery: interrupted");
+        } catch (ExecutionException e) {
+            throw new LogReaderException("runQuery: " + e.getCause().getLocalizedMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * @return the columns that can be written by BatchToOrc: the log line columns, with all of the remote IP
+     * columns, and the derived columns
+     */
+    private static List<String> knownColumns() {
+        List<String> columns = new ArrayList<>(LogLineParser.buildOrcFileSchema(IpColumnMode.BOTH, List.of()).getFieldNames());
+        columns.addAll(List.of(UserAgentClassifier.AGENT_CLASS_COL, UserAgentClassifier.BROWSER_FAMILY_COL,
+                UserAgentClassifier.IS_BOT_COL, GeoIpEnricher.COUNTRY_COL, GeoIpEnricher.ASN_COL));
+        return columns;
+    }
+
+    private IpFilters parseIpFilters() throws LogReaderException {
+        CidrRange remoteIpRange = null;
+        if (remoteIp != null) {
+            try {
+                remoteIpRange = CidrRange.parse(remoteIp);
+            } catch (LogReaderException e) {
+                // not an address: only matched against the remote_ip column
+                remoteIpRange = null;
+            }
+        }
+        CidrRange cidrRange = cidr != null ? CidrRange.parse(cidr) : null;
+        return new IpFilters(remoteIpRange, cidrRange);
+    }
+
+    public QueryResult runQuery() throws LogReaderException {
+        if (groupBy != null && ! knownColumns().contains(groupBy)) {
+            throw new LogReaderException("runQuery: unknown group by column " + groupBy +
+                    ". Columns: " + Arrays.toString(knownColumns().toArray()));
+        }
+        final IpFilters ipFilters = parseIpFilters();
+        int threads = (numThreads > 0) ? numThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService execPool = Executors.newFixedThreadPool(threads);
+        Queue<Reader> openReaders = new ConcurrentLinkedQueue<>();
+        try {
+            FileSystem fileSystem = FileSystemBuilder.getFileSystem(orcPath, readerConfig);
+            List<Path> files = listOrcFiles(fileSystem, new Path(orcPath));
+            List<Callable<List<StripeSplit>>> splitTasks = new ArrayList<>();
+            for (Path file : files) {
+                splitTasks.add(() -> buildSplits(fileSystem, file, openReaders));
+            }
+            List<StripeSplit> splits = new ArrayList<>();
+            for (List<StripeSplit> fileSplits : runAll(execPool, splitTasks)) {
+                splits.addAll(fileSplits);
+            }
+            List<Callable<PartialResult>> stripeTasks = new ArrayList<>();
+            for (StripeSplit split : splits) {
+                stripeTasks.add(() -> readStripe(split, ipFilters));
+            }
+            long matchingRows = 0;
+            long rowsRead = 0;
+            Map<String, Long> groupCounts = new HashMap<>();
+            for (PartialResult partial : runAll(execPool, stripeTasks)) {
+                matchingRows += partial.matchingRows();
+                rowsRead += partial.rowsRead();
+                partial.groupCounts().forEach((value, count) -> groupCounts.merge(value, count, Long::sum));
+            }
+            logger.info("runQuery: {} files, {} stripes, {} rows read", files.size(), splits.size(), rowsRead);
+            return new QueryResult(matchingRows, rowsRead, files.size(), splits.size(), groupCounts);
+        } catch (IOException e) {
+            throw new LogReaderException("runQuery: " + e.getLocalizedMessage(), e);
+        } finally {
+            execPool.shutdown();
+            closeReaders(openReaders);
+        }
+    }
+
+    private static void closeReaders(Queue<Reader> openReaders) {
+        for (Reader reader : openReaders) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.warn("runQuery: could not close an ORC reader: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+}
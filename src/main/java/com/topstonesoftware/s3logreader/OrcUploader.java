@@ -0,0 +1,245 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.Upload;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ *     Upload ORC files that have been written to a local staging directory to S3.
+ * </p>
+ * <p>
+ *     When BatchToOrc writes through the S3AFileSystem, the upload is limited by the single writer thread, a failure
+ *     part way through the file leaves a partial object. With an OrcUploader, BatchToOrc writes the ORC file to
+ *     the staging directory and then calls upload(). The file is uploaded by a TransferManager, on the existing
+ *     AmazonS3 client, as a multipart upload with parts that are sent in parallel. S3 only creates the object
+ *     when the multipart upload is completed, so a failed upload does not leave a partial object.
+ * </p>
+ * <p>
+ *     The path that is passed to upload() is turned into an object key the way the S3AFileSystem resolves
+ *     a path (see resolveKey()): a relative path, like http_logs/bearcave.com/2021-06-17.orc, is resolved against
+ *     the working directory /user/[user name] and an absolute path, like /http_logs/bearcave.com/2021-06-17.orc,
+ *     is the key without the leading slash. A staged file has the same key that it would have if it were written
+ *     through the S3AFileSystem, so the compact and query commands find it at the same path.
+ * </p>
+ * <p>
+ *     upload() returns once the upload has started, so the upload of one day's ORC file overlaps the conversion
+ *     of the next day. At most maxPendingUploads uploads are in flight. When there are more, upload() waits for
+ *     the oldest upload to finish, which bounds the disk space used by the staging directory.
+ * </p>
+ * <p>
+ *     A staged file is deleted when its upload completes. If an upload fails, the staged file is kept so that it
+ *     can be uploaded by hand, and awaitUploads() and close() throw a LogReaderException that lists the failed keys.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class OrcUploader implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(OrcUploader.class);
+    private static final long PART_SIZE = 16L * 1024 * 1024;
+    private static final int DEFAULT_UPLOAD_THREADS = 8;
+    private static final int DEFAULT_MAX_PENDING_UPLOADS = 2;
+    private final File stagingDir;
+    private final int maxPendingUploads;
+    private final TransferManager transferManager;
+    private final FileSystem stagingFileSystem;
+    // the S3AFileSystem working directory, as a key: user/[user name]
+    private final String workingDirKey;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+    private final List<PendingUpload> pendingUploads = new ArrayList<>();
+    private final List<String> failedKeys = new ArrayList<>();
+
+    private record PendingUpload(String bucket, String key, File stagedFile, Upload upload) {}
+
+    public OrcUploader(AmazonS3 s3Client, String stagingDir) throws LogReaderException {
+        this(s3Client, stagingDir, DEFAULT_UPLOAD_THREADS, DEFAULT_MAX_PENDING_UPLOADS);
+    }
+
+    /**
+     * @param s3Client the AmazonS3 client that is used for the uploads. It is not shut down by close().
+     * @param stagingDir the local directory where the ORC files are written before they are uploaded
+     * @param uploadThreads the number of multipart upload parts that are sent in parallel
+     * @param maxPendingUploads the number of uploads that can be in flight before upload() waits
+     */
+    public OrcUploader(AmazonS3 s3Client, String stagingDir, int uploadThreads, int maxPendingUploads) throws LogReaderException {
+        this.stagingDir = new File(stagingDir).getAbsoluteFile();
+        this.maxPendingUploads = Math.max(maxPendingUploads, 1);
+        if (! this.stagingDir.isDirectory() && ! this.stagingDir.mkdirs()) {
+            throw new LogReaderException("OrcUploader: could not create the staging directory " + this.stagingDir);
+        }
+        try {
+            // the raw local file system does not write .crc checksum files next to the staged files
+            this.stagingFileSystem = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+            // the S3AFileSystem sets its working directory to /user/[short user name]
+            this.workingDirKey = "user/" + UserGroupInformation.getCurrentUser().getShortUserName();
+        } catch (IOException e) {
+            throw new LogReaderException("OrcUploader: " + e.getLocalizedMessage(), e);
+        }
+        this.transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3Client)
+                .withMultipartUploadThreshold(PART_SIZE)
+                .withMinimumUploadPartSize(PART_SIZE)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(uploadThreads))
+                .withShutDownThreadPools(true)
+                .build();
+    }
+
+    /**
+     * Remove leading slashes, so that a path like "/domain/2021-06-17.orc" is the key "domain/2021-06-17.orc"
+     */
+    public static String objectKey(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    /**
+     * @return the object key for a path, resolved as the S3AFileSystem resolves it: a relative path is resolved
+     * against /user/[user name] and an absolute path is the key without the leading slash.
+     */
+    public String resolveKey(String path) {
+        return path.startsWith("/") ? objectKey(path) : workingDirKey + "/" + path;
+    }
+
+    /**
+     * @return the local file system that the staged ORC files are written to
+     */
+    public FileSystem getStagingFileSystem() {
+        return stagingFileSystem;
+    }
+
+    /**
+     * @return the staging file for an S3 object. The bucket is part of the path so that two buckets with the
+     * same key do not share a staging file.
+     */
+    public File stagingFile(String bucket, String key) {
+        return new File(new File(stagingDir, bucket), resolveKey(key));
+    }
+
+    /**
+     * Start the upload of a staged file to s3://bucket/[resolveKey(key)]. If there are more than maxPendingUploads uploads
+     * in flight, wait for the oldest upload to finish.
+     */
+    public void upload(String bucket, String key, File stagedFile) {
+        final String objectKey = resolveKey(key);
+        final long startTime = System.nanoTime();
+        PutObjectRequest request = new PutObjectRequest(bucket, objectKey, stagedFile);
+        request.setGeneralProgressListener((ProgressListener) event -> {
+            if (event.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+                metrics.getUploadTime().recordSince(startTime);
+            }
+        });
+        Upload upload = transferManager.upload(request);
+        synchronized (pendingUploads) {
+            pendingUploads.add(new PendingUpload(bucket, objectKey, stagedFile, upload));
+        }
+        logger.info("upload: started s3://{}/{} ({} bytes)", bucket, objectKey, stagedFile.length());
+        waitForUploads(maxPendingUploads);
+    }
+
+    private void finishUpload(PendingUpload pending) {
+        try {
+            pending.upload().waitForCompletion();
+            if (! pending.stagedFile().delete()) {
+                logger.warn("finishUpload: could not delete the staged file {}", pending.stagedFile());
+            }
+            logger.info("finishUpload: uploaded s3://{}/{}", pending.bucket(), pending.key());
+        } catch (AmazonClientException e) {
+            logger.error("finishUpload: s3://{}/{} failed, the staged file {} was kept: {}", pending.bucket(),
+                    pending.key(), pending.stagedFile(), e.getLocalizedMessage());
+            synchronized (failedKeys) {
+                failedKeys.add(pending.key());
+            }
+        } catch (InterruptedException e) {
+            logger.error("finishUpload: interrupted while waiting for s3://{}/{}", pending.bucket(), pending.key());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finish the uploads that are done and then wait, oldest first, until no more than maxPending uploads
+     * are in flight.
+     */
+    private void waitForUploads(int maxPending) {
+        List<PendingUpload> finished = new ArrayList<>();
+        synchronized (pendingUploads) {
+            Iterator<PendingUpload> iter = pendingUploads.iterator();
+            while (iter.hasNext()) {
+                PendingUpload pending = iter.next();
+                if (pending.upload().isDone()) {
+                    finished.add(pending);
+                    iter.remove();
+                }
+            }
+        }
+        finished.forEach(this::finishUpload);
+        boolean waiting = true;
+        while (waiting && ! Thread.currentThread().isInterrupted()) {
+            PendingUpload oldest = null;
+            synchronized (pendingUploads) {
+                if (pendingUploads.size() > maxPending) {
+                    oldest = pendingUploads.remove(0);
+                }
+            }
+            if (oldest != null) {
+                finishUpload(oldest);
+            } else {
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * Wait for all of the uploads that have been started to finish.
+     *
+     * @throws LogReaderException if one or more uploads failed
+     */
+    public void awaitUploads() throws LogReaderException {
+        waitForUploads(0);
+        synchronized (failedKeys) {
+            if (! failedKeys.isEmpty()) {
+                throw new LogReaderException("OrcUploader: " + failedKeys.size() + " uploads failed. The staged files are in " +
+                        stagingDir + ": " + String.join(", ", failedKeys));
+            }
+        }
+    }
+
+    /**
+     * Wait for all of the uploads to finish and shut down the TransferManager (but not the AmazonS3 client).
+     *
+     * @throws LogReaderException if one or more uploads failed
+     */
+    @Override
+    public void close() throws LogReaderException {
+        try {
+            awaitUploads();
+        } finally {
+            transferManager.shutdownNow(false);
+        }
+    }
+}
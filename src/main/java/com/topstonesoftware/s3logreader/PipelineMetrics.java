@@ -0,0 +1,212 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Process wide counters and latency histograms for each stage of the log to ORC pipeline.
+ * </p>
+ * <ul>
+ *     <li>S3 listing: the time for each listing call (LogFileBatcher, LogFollower)</li>
+ *     <li>S3 GET: the time to read each log file object, the objects and bytes read, and the number of
+ *     active S3LogReader threads</li>
+ *     <li>Hand-off: the number of log line chunks (see LogChunk) waiting in the queues between the S3LogReader threads and the
+ *     BatchToOrc threads</li>
+ *     <li>Parse: the time to parse a line (sampled, see BatchToOrc) and the number of lines that could not be parsed</li>
+ *     <li>ORC: the time to write a row (sampled) and the time to close (flush) each ORC file</li>
+ *     <li>Upload: the time to upload each staged ORC file (see OrcUploader)</li>
+ * </ul>
+ * <p>
+ *     The counters are LongAdders and the histograms are LatencyHistograms, whose buckets are also LongAdders, so
+ *     the threads that update them do not contend on a single memory location. The per line times are only
+ *     taken for one line in BatchToOrc.TIMING_SAMPLE, so their counts are the number of samples. The metrics are available over JMX (as
+ *     com.topstonesoftware.s3logreader:type=PipelineMetrics) and in the Prometheus text format (see MetricsReporter).
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class PipelineMetrics implements PipelineMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineMetrics.class);
+    private static final String MBEAN_NAME = "com.topstonesoftware.s3logreader:type=PipelineMetrics";
+    private static final String PREFIX = "s3logreader_";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SEC = 1e9;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final PipelineMetrics instance = new PipelineMetrics();
+    private final LatencyHistogram listingTime = new LatencyHistogram();
+    private final LatencyHistogram s3GetTime = new LatencyHistogram();
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram orcWriteTime = new LatencyHistogram();
+    private final LatencyHistogram orcCloseTime = new LatencyHistogram();
+    private final LatencyHistogram uploadTime = new LatencyHistogram();
+    private final LongAdder objectsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder linesRead = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final AtomicInteger activeReaders = new AtomicInteger();
+    private final Map<String, Collection<?>> queues = new ConcurrentHashMap<>();
+
+    private PipelineMetrics() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(this, new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            logger.warn("PipelineMetrics: could not register the JMX MBean: {}", e.getLocalizedMessage());
+        }
+    }
+
+    public static PipelineMetrics getInstance() {
+        return instance;
+    }
+
+    public LatencyHistogram getListingTime() { return listingTime; }
+
+    public LatencyHistogram getS3GetTime() { return s3GetTime; }
+
+    public LatencyHistogram getParseTime() { return parseTime; }
+
+    public LatencyHistogram getOrcWriteTime() { return orcWriteTime; }
+
+    public LatencyHistogram getOrcCloseTime() { return orcCloseTime; }
+
+    public LatencyHistogram getUploadTime() { return uploadTime; }
+
+    public void objectRead(long bytes, long lines) {
+        objectsRead.increment();
+        bytesRead.add(bytes);
+        linesRead.add(lines);
+    }
+
+    public void rowWritten() { rowsWritten.increment(); }
+
+    public void parseFailed() { parseFailures.increment(); }
+
+    public void readerStarted() { activeReaders.incrementAndGet(); }
+
+    public void readerFinished() { activeReaders.decrementAndGet(); }
+
+    /**
+     * Register a hand-off queue so that its size is included in the queue depth.
+     *
+     * @param name a unique name for the queue (e.g., the ORC file name)
+     */
+    public void registerQueue(String name, Collection<?> queue) { queues.put(name, queue); }
+
+    public void unregisterQueue(String name) { queues.remove(name); }
+
+    @Override
+    public long getObjectsRead() { return objectsRead.sum(); }
+
+    @Override
+    public long getBytesRead() { return bytesRead.sum(); }
+
+    @Override
+    public long getLinesRead() { return linesRead.sum(); }
+
+    @Override
+    public long getRowsWritten() { return rowsWritten.sum(); }
+
+    @Override
+    public long getParseFailures() { return parseFailures.sum(); }
+
+    @Override
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Collection<?> queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getActiveReaders() { return activeReaders.get(); }
+
+    @Override
+    public double getS3GetMillisP50() { return s3GetTime.getQuantile(0.5) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getS3GetMillisP99() { return s3GetTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getParseMillisP99() { return parseTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getOrcWriteMillisP99() { return orcWriteTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getOrcCloseMillisP99() { return orcCloseTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getUploadMillisP99() { return uploadTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    @Override
+    public double getListingMillisP99() { return listingTime.getQuantile(0.99) / NANOS_PER_MILLI; }
+
+    private static void appendCounter(StringBuilder text, String name, String help, String type, long value) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSummary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            text.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getQuantile(quantile) / NANOS_PER_SEC).append('\n');
+        }
+        text.append(PREFIX).append(name).append("_sum ").append(histogram.getSum() / NANOS_PER_SEC).append('\n');
+        text.append(PREFIX).append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        appendCounter(text, "objects_read_total", "S3 log file objects read", "counter", getObjectsRead());
+        appendCounter(text, "bytes_read_total", "S3 log file bytes read", "counter", getBytesRead());
+        appendCounter(text, "lines_read_total", "Log lines read from S3", "counter", getLinesRead());
+        appendCounter(text, "rows_written_total", "ORC rows written", "counter", getRowsWritten());
+        appendCounter(text, "parse_failures_total", "Log lines that could not be parsed", "counter", getParseFailures());
+        appendCounter(text, "queue_depth", "Log line chunks waiting to be written to ORC", "gauge", getQueueDepth());
+        appendCounter(text, "active_readers", "Active S3LogReader threads", "gauge", getActiveReaders());
+        appendSummary(text, "listing_seconds", "S3 listing call time", listingTime);
+        appendSummary(text, "s3_get_seconds", "Time to read one S3 log file object", s3GetTime);
+        appendSummary(text, "parse_seconds", "Time to parse one log line (sampled)", parseTime);
+        appendSummary(text, "orc_write_seconds", "Time to write one ORC row (sampled)", orcWriteTime);
+        appendSummary(text, "orc_close_seconds", "Time to flush and close one ORC file", orcCloseTime);
+        appendSummary(text, "upload_seconds", "Time to upload one staged ORC file", uploadTime);
+        return text.toString();
+    }
+
+    /**
+     * @return a one line progress summary for logging
+     */
+    public String progressSummary() {
+        return String.format("objects: %d, MB: %.1f, lines read: %d, rows written: %d, parse failures: %d, " +
+                        "queue depth: %d, active readers: %d, S3 GET p50/p99: %.1f/%.1f ms, parse p99: %.3f ms, " +
+                        "ORC write p99: %.3f ms, listing p99: %.1f ms",
+                getObjectsRead(), getBytesRead() / (1024.0 * 1024.0), getLinesRead(), getRowsWritten(),
+                getParseFailures(), getQueueDepth(), getActiveReaders(), getS3GetMillisP50(), getS3GetMillisP99(),
+                getParseMillisP99(), getOrcWriteMillisP99(), getListingMillisP99());
+    }
+}
@@ -0,0 +1,28 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+/**
+ * The JMX view of the PipelineMetrics. The latencies are in milliseconds (with a fraction) so that they are
+ * readable in JConsole or VisualVM.
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public interface PipelineMetricsMBean {
+    long getObjectsRead();
+    long getBytesRead();
+    long getLinesRead();
+    long getRowsWritten();
+    long getParseFailures();
+    long getQueueDepth();
+    int getActiveReaders();
+    double getS3GetMillisP50();
+    double getS3GetMillisP99();
+    double getParseMillisP99();
+    double getOrcWriteMillisP99();
+    double getOrcCloseMillisP99();
+    double getUploadMillisP99();
+    double getListingMillisP99();
+}
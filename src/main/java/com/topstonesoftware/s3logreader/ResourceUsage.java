@@ -0,0 +1,80 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * <p>
+ *     A snapshot of the memory allocated by the current thread and the JVM garbage collection time.
+ * </p>
+ * <p>
+ *     A snapshot is taken when a BatchToOrc thread starts. When the batch is finished, the allocation rate and
+ *     the GC pause time per million log lines are reported. Thread allocation counts are only available on
+ *     JVMs that support com.sun.management.ThreadMXBean (e.g., HotSpot). The GC time is for the whole JVM,
+ *     not just the calling thread.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class ResourceUsage {
+    private static final double MILLION = 1_000_000.0;
+    private final long startAllocated;
+    private final long startGcMillis;
+    private final long startNanos;
+
+    public ResourceUsage() {
+        startAllocated = threadAllocatedBytes();
+        startGcMillis = gcMillis();
+        startNanos = System.nanoTime();
+    }
+
+    private static long threadAllocatedBytes() {
+        long allocated = -1;
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+                allocated = sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return allocated;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long time = gcBean.getCollectionTime();
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Build a report for the lines processed since this object was created. This must be called from
+     * the same thread that created the object.
+     *
+     * @param linesProcessed the number of lines processed by this thread
+     * @return a string suitable for logging
+     */
+    public String report(long linesProcessed) {
+        double elapsedSec = (System.nanoTime() - startNanos) / 1e9;
+        long gcDelta = gcMillis() - startGcMillis;
+        long endAllocated = threadAllocatedBytes();
+        double millions = Math.max(linesProcessed, 1) / MILLION;
+        String allocStr = "n/a";
+        if (startAllocated >= 0 && endAllocated >= 0) {
+            double allocMB = (endAllocated - startAllocated) / (1024.0 * 1024.0);
+            allocStr = String.format("%.1f MB/million lines (%.1f MB/sec)", allocMB / millions,
+                    elapsedSec > 0 ? allocMB / elapsedSec : 0.0);
+        }
+        return String.format("lines: %d, elapsed: %.1f sec, allocation: %s, GC time: %.1f ms/million lines",
+                linesProcessed, elapsedSec, allocStr, gcDelta / millions);
+    }
+}
@@ -23,4 +23,14 @@ public class S3ClientBuilder {
             return AmazonS3ClientBuilder.standard().withRegion(regionStr).withCredentials( credProvider ).withClientConfiguration(clientConfig).build();
     }
 
+    /**
+     * Build a client that uses the default credentials and region providers. In an AWS Lambda function these
+     * are the function's role (including the session token) and the AWS_REGION environment variable.
+     */
+    public static AmazonS3 getS3Client(int maxConnections) {
+            ClientConfiguration clientConfig = new ClientConfiguration();
+            clientConfig.setMaxConnections( maxConnections );
+            return AmazonS3ClientBuilder.standard().withClientConfiguration(clientConfig).build();
+    }
+
 }
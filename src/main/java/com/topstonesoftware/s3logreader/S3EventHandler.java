@@ -0,0 +1,164 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import com.amazonaws.services.s3.event.S3EventNotification;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ *     An entry point for converting the log files named in an S3 event notification, for example from an
+ *     AWS Lambda function that is triggered when log files are written to the log bucket.
+ * </p>
+ * <p>
+ *     The handler has the Lambda stream handler signature, so no Lambda library is needed:
+ * </p>
+ * <pre>
+ *     com.topstonesoftware.s3logreader.S3EventHandler::handleRequest
+ * </pre>
+ * <p>
+ *     The ORC destination is set by environment variables. The log files in the event are grouped by
+ *     bucket and each group is converted by an InMemoryConverter into one ORC file,
+ *     [ORC_PATH_PREFIX]/[DOMAIN_NAME]/[date suffix of the first log file].orc in the ORC_BUCKET bucket.
+ * </p>
+ * <ul>
+ *     <li>ORC_BUCKET - the S3 bucket for the ORC files</li>
+ *     <li>ORC_PATH_PREFIX - optional: the prefix for the ORC file keys. For example: http_logs</li>
+ *     <li>DOMAIN_NAME - the domain that the logs were collected for</li>
+ *     <li>UA_RULES - optional: a user agent rule file (see UserAgentClassifier), as for --uaRules</li>
+ *     <li>GEO_IP_DB - optional: a CSV IP range database (see GeoIpEnricher), as for --geoIpDb</li>
+ *     <li>IP_COLUMNS - optional: string, numeric or both (see IpColumnMode), as for --ipColumns</li>
+ * </ul>
+ * <p>
+ *     The enricher and IP column variables should match the options that are passed to convert, so that the
+ *     ORC files in the table have the same schema.
+ * </p>
+ * <p>
+ *     The AmazonS3 client and the converter are created on the first request and reused by later requests
+ *     in the same (warm) process. The time from class initialization to the end of the first request is logged.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class S3EventHandler {
+    private static final Logger logger = LoggerFactory.getLogger(S3EventHandler.class);
+    private static final long CLASS_INIT_TIME = System.nanoTime();
+    private static final String ORC_BUCKET_ENV = "ORC_BUCKET";
+    private static final String ORC_PATH_PREFIX_ENV = "ORC_PATH_PREFIX";
+    private static final String DOMAIN_NAME_ENV = "DOMAIN_NAME";
+    private static final String UA_RULES_ENV = "UA_RULES";
+    private static final String GEO_IP_DB_ENV = "GEO_IP_DB";
+    private static final String IP_COLUMNS_ENV = "IP_COLUMNS";
+    private static final int MAX_CONNECTIONS = 4;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static boolean firstRequest = true;
+    // built by the first request, so that loading S3EventHandler is cheap
+    private static InMemoryConverter converter = null;
+
+    private static String requiredEnv(String name) throws LogReaderException {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            throw new LogReaderException("S3EventHandler: the environment variable " + name + " is not set");
+        }
+        return value;
+    }
+
+    /**
+     * @return the ColumnEnrichers that are selected by the UA_RULES and GEO_IP_DB environment variables
+     */
+    private static List<ColumnEnricher> buildEnrichers() throws LogReaderException {
+        List<ColumnEnricher> enrichers = new ArrayList<>();
+        String uaRules = System.getenv(UA_RULES_ENV);
+        if (uaRules != null && ! uaRules.isEmpty()) {
+            enrichers.add(new UserAgentClassifier(uaRules));
+        }
+        String geoIpDb = System.getenv(GEO_IP_DB_ENV);
+        if (geoIpDb != null && ! geoIpDb.isEmpty()) {
+            enrichers.add(new GeoIpEnricher(geoIpDb));
+        }
+        return enrichers;
+    }
+
+    private static IpColumnMode ipColumnMode() throws LogReaderException {
+        String mode = System.getenv(IP_COLUMNS_ENV);
+        try {
+            return mode == null || mode.isEmpty() ? IpColumnMode.STRING : IpColumnMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new LogReaderException("S3EventHandler: " + IP_COLUMNS_ENV + " must be string, numeric or both");
+        }
+    }
+
+    private static InMemoryConverter getConverter() throws LogReaderException {
+        if (converter == null) {
+            converter = new InMemoryConverter(S3ClientBuilder.getS3Client(MAX_CONNECTIONS), buildEnrichers(), ipColumnMode());
+        }
+        return converter;
+    }
+
+    /**
+     * @return the ORC key for the log files: the key is used exactly, without a /user/[user name] prefix. A leading
+     * slash is removed, so that ORC_PATH_PREFIX can be the same absolute prefix (e.g., /http_logs) that is passed to
+     * convert and compact to write and read the same keys.
+     */
+    private static String orcKey(String orcPathPrefix, String domainName, String firstKey) {
+        String prefix = orcPathPrefix == null || orcPathPrefix.isEmpty() ? "" : orcPathPrefix + "/";
+        return OrcUploader.objectKey(prefix + domainName + "/" + InMemoryConverter.orcFileName(firstKey));
+    }
+
+    /**
+     * Convert the log files in an S3 event notification.
+     *
+     * @return the results of the conversions, one for each log bucket in the event
+     */
+    public static synchronized List<InMemoryConverter.ConvertResult> handleEvent(S3EventNotification event) throws LogReaderException {
+        String orcBucket = requiredEnv(ORC_BUCKET_ENV);
+        String domainName = requiredEnv(DOMAIN_NAME_ENV);
+        String orcPathPrefix = System.getenv(ORC_PATH_PREFIX_ENV);
+        Map<String, List<String>> bucketKeys = new TreeMap<>();
+        for (S3EventNotification.S3EventNotificationRecord record : event.getRecords()) {
+            bucketKeys.computeIfAbsent(record.getS3().getBucket().getName(), k -> new ArrayList<>())
+                    .add(record.getS3().getObject().getUrlDecodedKey());
+        }
+        List<InMemoryConverter.ConvertResult> results = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : bucketKeys.entrySet()) {
+            List<String> keys = entry.getValue();
+            keys.sort(String::compareTo);
+            String key = orcKey(orcPathPrefix, domainName, keys.get(0));
+            results.add(getConverter().convert(entry.getKey(), keys, orcBucket, key));
+        }
+        if (firstRequest) {
+            firstRequest = false;
+            logger.info("handleEvent: class initialization to the end of the first request: {} ms",
+                    String.format("%.1f", (System.nanoTime() - CLASS_INIT_TIME) / NANOS_PER_MILLI));
+        }
+        return results;
+    }
+
+    /**
+     * The Lambda stream handler. The input is the S3 event notification JSON. The output is a line for each
+     * ORC file that was written.
+     */
+    public void handleRequest(InputStream input, OutputStream output) throws IOException, LogReaderException {
+        String eventJson = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        StringBuilder response = new StringBuilder();
+        for (InMemoryConverter.ConvertResult result : handleEvent(S3EventNotification.parseJson(eventJson))) {
+            response.append(result.orcKey()).append(' ').append(result.rows()).append(" rows\n");
+        }
+        output.write(response.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
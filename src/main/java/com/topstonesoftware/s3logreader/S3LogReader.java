@@ -4,8 +4,10 @@
 
 package com.topstonesoftware.s3logreader;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.SneakyThrows;
@@ -18,8 +20,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -27,6 +32,20 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Read a list of S3 log files can insert the lines read into a LinkedBlockingQueue.
  * </p>
  * <p>
+ *     The lines are queued as LogChunks of up to CHUNK_LINES lines from a single log file, with the key
+ *     of the log file. If there is more than one queue (one for each ORC part file that is written for the day),
+ *     all of the chunks of a log file are put on the queue that is selected by the hash of the log file key.
+ *     The assignment of log files to part files does not depend on the thread timing.
+ * </p>
+ * <p>
+ *     Log files that are gzip or zstd compressed are decompressed on the reader thread as they are read
+ *     (see CompressedInput).
+ * </p>
+ * <p>
+ *     If a log file cannot be read, the error is logged, the thread stops reading and isReadFailed() returns true,
+ *     so that the caller knows that the ORC file for the batch is missing lines.
+ * </p>
+ * <p>
  *     This class has a builder that is constructed via the Lombok @Builder annotation.
  *     All arguments must be provided.  Example:
  * </p>
@@ -35,7 +54,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  *                     .s3Client(s3Client)
  *                     .logBucket(logBucket)
  *                     .keyList(syncKeyList)
- *                     .logLines(logLines)
+ *                     .logQueues(List.of(logLines))
  *                     .killer(killer)
  *                     .build();
  * </pre>
@@ -50,7 +69,10 @@ public class S3LogReader implements Runnable {
     private static final Regions S3_REGION = Regions.US_WEST_1;
     private static final Logger logger = LoggerFactory.getLogger(S3LogReader.class);
     private static final AtomicInteger idGen = new AtomicInteger();
+    // S3 access log files are usually small, so most log files are a single chunk
+    public static final int CHUNK_LINES = 1024;
     private final int threadID = idGen.incrementAndGet();
+    private final AtomicBoolean readFailed = new AtomicBoolean(false);
     @NotNull
     private final AmazonS3 s3Client;
     @NotNull
@@ -58,37 +80,80 @@ public class S3LogReader implements Runnable {
     @NotNull
     private final S3KeyList keyList;
     @NotNull
-    private final LinkedBlockingQueue<String> logLines;
+    private final List<LinkedBlockingQueue<LogChunk>> logQueues;
     @NotNull
     private final Killer killer;
 
+    /**
+     * @return the shard (the index of the queue and the ORC part file) for a log file key
+     */
+    static int shardFor(String key, int numShards) {
+        return Math.floorMod(key.hashCode(), numShards);
+    }
+
+    /**
+     * @return true if a log file could not be read. This is set when run() finishes.
+     */
+    public boolean isReadFailed() {
+        return readFailed.get();
+    }
+
     @SneakyThrows
     @Override
     public void run() {
-        int linesProcessed = 0;
+        final PipelineMetrics metrics = PipelineMetrics.getInstance();
+        final long startTime = System.nanoTime();
+        final int[] shardLines = new int[logQueues.size()];
+        int objectsRead = 0;
         killer.register(threadID);
+        metrics.readerStarted();
         Optional<String> key;
         try {
             while ((key = keyList.getKey()).isPresent()) {
                 String keyVal = key.get();
-                InputStream istream = s3Client.getObject(logBucket, keyVal).getObjectContent();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(istream));
-                String logLine;
-                while ((logLine = reader.readLine()) != null) {
-                    if (! logLine.isBlank()) {
-                        logLines.put(logLine);
-                        linesProcessed++;
+                int shard = shardFor(keyVal, logQueues.size());
+                LinkedBlockingQueue<LogChunk> logLines = logQueues.get(shard);
+                long getStart = System.nanoTime();
+                int objectLines = 0;
+                S3Object s3Object = s3Client.getObject(logBucket, keyVal);
+                long contentLength = s3Object.getObjectMetadata().getContentLength();
+                try (InputStream istream = CompressedInput.open(keyVal, s3Object.getObjectContent(), contentLength)) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(istream));
+                    List<String> chunk = new ArrayList<>();
+                    String logLine;
+                    while ((logLine = reader.readLine()) != null) {
+                        if (! logLine.isBlank()) {
+                            chunk.add(logLine);
+                            objectLines++;
+                            if (chunk.size() == CHUNK_LINES) {
+                                logLines.put(new LogChunk(keyVal, chunk));
+                                chunk = new ArrayList<>();
+                            }
+                        }
+                    }
+                    if (! chunk.isEmpty()) {
+                        logLines.put(new LogChunk(keyVal, chunk));
                     }
                 }
+                metrics.getS3GetTime().recordSince(getStart);
+                metrics.objectRead(contentLength, objectLines);
+                shardLines[shard] += objectLines;
+                objectsRead++;
             }
-        } catch (IOException e) {
+        } catch (IOException | AmazonClientException e) {
             String msg = "run: " + e.getLocalizedMessage();
             logger.error(msg);
+            readFailed.set(true);
         } catch(InterruptedException e) {
             logger.error("Thread interrupted");
+            readFailed.set(true);
             Thread.currentThread().interrupt();
         }
-        killer.removeID(threadID, linesProcessed);
+        metrics.readerFinished();
+        double elapsedSec = (System.nanoTime() - startTime) / 1e9;
+        logger.debug("run: reader {}: {} objects, {} objects/sec", threadID, objectsRead,
+                elapsedSec > 0 ? String.format("%.1f", objectsRead / elapsedSec) : "n/a");
+        killer.removeID(threadID, shardLines);
     }
 
 }
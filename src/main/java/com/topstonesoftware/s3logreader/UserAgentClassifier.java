@@ -0,0 +1,183 @@
+/*
+  This software is published under the Apache 2 software license
+ */
+
+package com.topstonesoftware.s3logreader;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.orc.TypeDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>
+ *     Classify the user agent of each log line and add the agent_class, browser_family and is_bot columns to
+ *     the ORC rows.
+ * </p>
+ * <p>
+ *     Separating crawler traffic from people at query time requires LIKE scans over the user_agent column. These
+ *     low cardinality columns are computed once, when the ORC file is written, from a rule file. Each line of the
+ *     rule file has an agent class, a browser family, true or false for is_bot, and a pattern. The pattern is the
+ *     rest of the line. It is a case insensitive substring of the user agent or, if it starts with ~, a regular
+ *     expression that is found in the user agent. The rules are tried in order and the first rule that matches
+ *     classifies the user agent. If no rule matches, the class and family are "other" and is_bot is false.
+ *     Blank lines and lines that start with # are ignored.
+ * </p>
+ * <pre>
+ *     # agent_class  browser_family  is_bot  pattern
+ *     crawler        Googlebot       true    googlebot
+ *     crawler        other           true    ~(bot|crawl|spider)
+ *     tool           curl            true    curl/
+ *     none           none            true    ~^-$
+ *     browser        Edge            false   edg/
+ *     browser        Chrome          false   chrome/
+ *     browser        Safari          false   safari/
+ *     browser        Firefox         false   firefox/
+ * </pre>
+ * <p>
+ *     A few thousand user agents account for almost all log lines, so the classifications are kept in a
+ *     ConcurrentLruCache keyed by the raw user agent. The user agent Strings are interned by the LogLineParser
+ *     column dictionary, so their hash codes are usually already computed. The classifier can be shared by
+ *     several BatchToOrc threads.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+@Slf4j
+public class UserAgentClassifier implements ColumnEnricher {
+    private static final Logger logger = LoggerFactory.getLogger(UserAgentClassifier.class);
+    public static final String AGENT_CLASS_COL = "agent_class";
+    public static final String BROWSER_FAMILY_COL = "browser_family";
+    public static final String IS_BOT_COL = "is_bot";
+    private static final String COMMENT = "#";
+    private static final String REGEX_PREFIX = "~";
+    private static final String OTHER = "other";
+    private static final int NUM_RULE_FIELDS = 4;
+    private static final int DEFAULT_CACHE_SIZE = 16 * 1024;
+    private static final Classification UNMATCHED = new Classification(OTHER, OTHER, Boolean.FALSE);
+    private final List<Rule> rules;
+    private final ConcurrentLruCache<String, Classification> cache;
+
+    /**
+     * The derived column values for a user agent
+     */
+    public record Classification(String agentClass, String browserFamily, Boolean isBot) {}
+
+    /**
+     * A rule matches either a lower case substring or a regular expression.
+     */
+    private record Rule(String substring, Pattern regex, Classification classification) {
+        boolean matches(String userAgent, String lowerCaseAgent) {
+            return regex != null ? regex.matcher(userAgent).find() : lowerCaseAgent.contains(substring);
+        }
+    }
+
+    public UserAgentClassifier(String ruleFile) throws LogReaderException {
+        this(ruleFile, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param ruleFile the local rule file
+     * @param cacheSize the maximum number of user agents in the classification cache
+     */
+    public UserAgentClassifier(String ruleFile, int cacheSize) throws LogReaderException {
+        this.rules = readRules(ruleFile);
+        this.cache = new ConcurrentLruCache<>(cacheSize);
+        logger.info("UserAgentClassifier: {} rules from {}", rules.size(), ruleFile);
+    }
+
+    private static List<Rule> readRules(String ruleFile) throws LogReaderException {
+        List<Rule> ruleList = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(ruleFile), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNum = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+", NUM_RULE_FIELDS);
+                if (fields.length != NUM_RULE_FIELDS) {
+                    throw new LogReaderException("readRules: " + ruleFile + " line " + lineNum +
+                            ": expected agent_class browser_family is_bot pattern");
+                }
+                Classification classification = new Classification(fields[0].intern(), fields[1].intern(),
+                        Boolean.valueOf(fields[2]));
+                String rulePattern = fields[3];
+                if (rulePattern.startsWith(REGEX_PREFIX)) {
+                    try {
+                        Pattern regex = Pattern.compile(rulePattern.substring(REGEX_PREFIX.length()), Pattern.CASE_INSENSITIVE);
+                        ruleList.add(new Rule(null, regex, classification));
+                    } catch (PatternSyntaxException e) {
+                        throw new LogReaderException("readRules: " + ruleFile + " line " + lineNum + ": " + e.getDescription());
+                    }
+                } else {
+                    ruleList.add(new Rule(rulePattern.toLowerCase(Locale.ROOT), null, classification));
+                }
+            }
+        } catch (IOException e) {
+            throw new LogReaderException("readRules: " + ruleFile + ": " + e.getLocalizedMessage(), e);
+        }
+        return ruleList;
+    }
+
+    private Classification applyRules(String userAgent) {
+        String lowerCaseAgent = userAgent.toLowerCase(Locale.ROOT);
+        for (Rule rule : rules) {
+            if (rule.matches(userAgent, lowerCaseAgent)) {
+                return rule.classification();
+            }
+        }
+        return UNMATCHED;
+    }
+
+    /**
+     * @param userAgent the raw user agent field from a log line
+     */
+    public Classification classify(String userAgent) {
+        return cache.get(userAgent != null ? userAgent : "", this::applyRules);
+    }
+
+    @Override
+    public int numFields() {
+        return 3;
+    }
+
+    @Override
+    public void addFields(TypeDescription schema) {
+        schema.addField(AGENT_CLASS_COL, TypeDescription.createString());
+        schema.addField(BROWSER_FAMILY_COL, TypeDescription.createString());
+        schema.addField(IS_BOT_COL, TypeDescription.createBoolean());
+    }
+
+    @Override
+    public boolean usesField(LogFieldEnum field) {
+        return field == LogFieldEnum.USER_AGENT;
+    }
+
+    @Override
+    public void addValues(Map<LogFieldEnum, String> columnMap, List<Object> row) {
+        Classification classification = classify(columnMap.get(LogFieldEnum.USER_AGENT));
+        row.add(classification.agentClass());
+        row.add(classification.browserFamily());
+        row.add(classification.isBot());
+    }
+
+    @Override
+    public String stats() {
+        return "user agent cache: hits=" + cache.getHits() + " misses=" + cache.getMisses();
+    }
+}
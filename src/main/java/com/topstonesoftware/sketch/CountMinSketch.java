@@ -0,0 +1,83 @@
+/*
+    This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.sketch;
+
+/**
+ * <p>
+ *     A Count-Min sketch (Cormode and Muthukrishnan). The sketch estimates the frequency of an item in a
+ *     stream in fixed memory. The estimate is never less than the true count. With width w and depth d
+ *     the estimate exceeds the true count by at most 2N/w with probability 1 - (1/2)^d, where N is the
+ *     total count.
+ * </p>
+ * <p>
+ *     This class is not thread safe.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final int mask;
+    private final long[][] table;
+    private long totalCount = 0;
+
+    /**
+     * @param depth the number of hash rows
+     * @param width the number of counters in each row. This is rounded up to a power of two.
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+        this.mask = this.width - 1;
+        this.table = new long[depth][this.width];
+    }
+
+    private int column(long hash, int row) {
+        // Kirsch-Mitzenmacher: derive the row hashes from two halves of a 64-bit hash
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        return (h1 + row * h2) & mask;
+    }
+
+    /**
+     * Add count to the item's counters
+     * @return the frequency estimate for the item after the update
+     */
+    public long add(CharSequence item, long count) {
+        long hash = Hash64.hash(item);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int col = column(hash, row);
+            table[row][col] += count;
+            min = Math.min(min, table[row][col]);
+        }
+        totalCount += count;
+        return min;
+    }
+
+    public long estimate(CharSequence item) {
+        long hash = Hash64.hash(item);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, table[row][column(hash, row)]);
+        }
+        return min;
+    }
+
+    public long getTotalCount() { return totalCount; }
+
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("CountMinSketch.merge: sketch dimensions do not match");
+        }
+        for (int row = 0; row < depth; row++) {
+            for (int col = 0; col < width; col++) {
+                table[row][col] += other.table[row][col];
+            }
+        }
+        totalCount += other.totalCount;
+    }
+}
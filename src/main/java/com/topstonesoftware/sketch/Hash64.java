@@ -0,0 +1,38 @@
+/*
+    This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.sketch;
+
+/**
+ * A 64-bit hash for Strings that is used by the probabilistic sketches. String.hashCode() is only 32 bits
+ * and its low order bits are not well distributed, which matters for HyperLogLog register selection.
+ * The hash is FNV-1a over the characters followed by the MurmurHash3 64-bit finalizer.
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class Hash64 {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hash64() {}
+
+    public static long hash(CharSequence value) {
+        long h = FNV_OFFSET;
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+    This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.sketch;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ *     Track the most frequent items in a stream using a Count-Min sketch for the counts and a bounded set
+ *     of candidate items.
+ * </p>
+ * <p>
+ *     An item becomes a candidate when its estimated count is greater than the smallest count in the
+ *     candidate set. The candidate set holds more items than are reported so that items near the cut-off
+ *     are not lost. The reported counts are Count-Min estimates, which may be slightly high.
+ * </p>
+ * <p>
+ *     The candidates are kept in a map, for the lookup by item, and in a set ordered by count, so the
+ *     smallest candidate is found, updated or evicted in O(log capacity) time.
+ * </p>
+ * <p>
+ *     This class is not thread safe.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class HeavyHitters {
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 14;
+    private final int capacity;
+    private final CountMinSketch sketch = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private final TreeSet<Candidate> byCount = new TreeSet<>(
+            Comparator.comparingLong(Candidate::count).thenComparing(Candidate::item));
+
+    private record Candidate(String item, long count) {}
+
+    /**
+     * @param capacity the number of candidate items that are tracked
+     */
+    public HeavyHitters(int capacity) {
+        this.capacity = capacity;
+    }
+
+    private void offer(String item, long estimate) {
+        Candidate candidate = candidates.get(item);
+        boolean insert = true;
+        if (candidate != null) {
+            byCount.remove(candidate);
+        } else if (candidates.size() >= capacity) {
+            Candidate min = byCount.first();
+            if (estimate > min.count()) {
+                byCount.pollFirst();
+                candidates.remove(min.item());
+            } else {
+                insert = false;
+            }
+        }
+        if (insert) {
+            Candidate updated = new Candidate(item, estimate);
+            candidates.put(item, updated);
+            byCount.add(updated);
+        }
+    }
+
+    public void add(String item) {
+        if (item != null) {
+            offer(item, sketch.add(item, 1));
+        }
+    }
+
+    public long getTotalCount() { return sketch.getTotalCount(); }
+
+    /**
+     * @param k the number of items to return
+     * @return the k most frequent items, in descending order of estimated count
+     */
+    public List<Map.Entry<String, Long>> topK(int k) {
+        List<Map.Entry<String, Long>> items = new ArrayList<>();
+        for (Candidate candidate : byCount.descendingSet()) {
+            if (items.size() == k) {
+                break;
+            }
+            items.add(new AbstractMap.SimpleImmutableEntry<>(candidate.item(), candidate.count()));
+        }
+        return items;
+    }
+
+    public void merge(HeavyHitters other) {
+        sketch.merge(other.sketch);
+        List<String> items = new ArrayList<>(candidates.keySet());
+        items.addAll(other.candidates.keySet());
+        candidates.clear();
+        byCount.clear();
+        for (String item : items) {
+            offer(item, sketch.estimate(item));
+        }
+    }
+}
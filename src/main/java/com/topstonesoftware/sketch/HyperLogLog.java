@@ -0,0 +1,88 @@
+/*
+    This software is published under the Apache 2 software license.
+ */
+
+package com.topstonesoftware.sketch;
+
+/**
+ * <p>
+ *     A HyperLogLog distinct value estimator (Flajolet et al., with the linear counting correction for small
+ *     cardinalities).
+ * </p>
+ * <p>
+ *     With the default precision of 14 the sketch uses 16K one byte registers and the standard error of the
+ *     estimate is about 0.8 percent. Sketches with the same precision can be merged, so per-thread sketches
+ *     can be combined into a daily estimate.
+ * </p>
+ * <p>
+ *     This class is not thread safe.
+ * </p>
+ *
+ * @author Ian Kaplan, Topstone Software Consulting
+ */
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 14;
+    private final int precision;
+    private final int numRegisters;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the number of hash bits used to select a register (4 to 18)
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("HyperLogLog: precision must be between 4 and 18");
+        }
+        this.precision = precision;
+        this.numRegisters = 1 << precision;
+        this.registers = new byte[numRegisters];
+    }
+
+    public void add(CharSequence value) {
+        if (value != null) {
+            addHash(Hash64.hash(value));
+        }
+    }
+
+    public void addHash(long hash) {
+        int ix = (int)(hash >>> (64 - precision));
+        // the remaining bits, with a sentinel bit so that the rank is bounded
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte)(Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[ix]) {
+            registers[ix] = rank;
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / numRegisters);
+        double estimate = alpha * numRegisters * numRegisters / sum;
+        if (estimate <= 2.5 * numRegisters && zeros > 0) {
+            estimate = numRegisters * Math.log((double)numRegisters / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("HyperLogLog.merge: precision does not match");
+        }
+        for (int i = 0; i < numRegisters; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+}